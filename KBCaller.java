@@ -34,6 +34,14 @@ public class KBCaller
     return launch_http( "/subterms/" + encode( exp ) );
   }
 
+  /*
+   * Get one page of the subclasses of given expression, in IRI order, with the total count
+   */
+  public String subterms( String exp, int offset, int limit ) throws IOException
+  {
+    return launch_http( "/subterms/" + encode( exp ) + "?json&offset=" + offset + "&limit=" + limit );
+  }
+
   /*
    * Get all parents (i.e., direct superclasses) of a given term.
    */
@@ -61,6 +69,14 @@ public class KBCaller
     return launch_http( "/siblings/" + encode( exp ) );
   }
 
+  /*
+   * Count the distinct subterms of a given term, without listing them
+   */
+  public String count( String exp ) throws IOException
+  {
+    return launch_http( "/count/" + encode( exp ) + "?json" );
+  }
+
   /*
    * Get subterms of a given term, in a hierarchical JSON format
    */
@@ -69,6 +85,14 @@ public class KBCaller
     return launch_http( "/subhierarchy/" + encode( exp ) );
   }
 
+  /*
+   * Get at most depth levels of the subhierarchy, printing shared subtrees only once
+   */
+  public String subhierarchy( String exp, int depth ) throws IOException
+  {
+    return launch_http( "/subhierarchy/" + encode( exp ) + "?ref&depth=" + depth );
+  }
+
   /*
    * Get all terms equivalent to given term
    */
@@ -109,6 +133,117 @@ public class KBCaller
     return launch_http( "/search/" + encode( label ) );
   }
 
+  /*
+   * Get up to k terms with an rdfs:label starting with the given prefix
+   */
+  public String autocomplete( String prefix, int k ) throws IOException
+  {
+    return launch_http( "/autocomplete/" + encode( prefix ) + "?json&k=" + k );
+  }
+
+  /*
+   * Get up to k terms with an rdfs:label similar to the given text, allowing for typos
+   */
+  public String fuzzysearch( String text, int k ) throws IOException
+  {
+    return launch_http( "/fuzzysearch/" + encode( text ) + "?json&k=" + k );
+  }
+
+  /*
+   * Search labels, synonyms, definitions, etc. for the given words; returns one page of
+   * ranked results, with the total number of matches
+   */
+  public String fulltext( String words, int offset, int limit ) throws IOException
+  {
+    return launch_http( "/fulltext/" + encode( words ) + "?json&offset=" + offset + "&limit=" + limit );
+  }
+
+  /*
+   * Get the rdfs:labels of many terms at once.  The argument is a JSON array of shortforms;
+   * returns a JSON object mapping each shortform to its labels
+   */
+  public String bulk_labels( String json ) throws IOException
+  {
+    return launch_http_post( "/labels", json );
+  }
+
+  /*
+   * Get the terms with each of many rdfs:labels at once.  The argument is a JSON array of
+   * labels; returns a JSON object mapping each label to the terms that have it
+   */
+  public String bulk_search( String json ) throws IOException
+  {
+    return launch_http_post( "/search", json );
+  }
+
+  /*
+   * Check whether sub is a subclass of (or equivalent to) sup
+   */
+  public String issubclass( String sub, String sup ) throws IOException
+  {
+    return launch_http( "/issubclass/" + encode( sub + "," + sup ) + "?json" );
+  }
+
+  /*
+   * Check many subclass relationships at once.  The argument is a JSON array of
+   * [subclass, superclass] pairs; returns a JSON array of true/false, one per pair
+   */
+  public String bulk_issubclass( String json ) throws IOException
+  {
+    return launch_http_post( "/issubclass", json );
+  }
+
+  /*
+   * Get the lowest common ancestors of the given comma-separated terms, with a shortest
+   * subclass path up to each from every term
+   */
+  public String lca( String terms ) throws IOException
+  {
+    return launch_http( "/lca/" + encode( terms ) + "?json" );
+  }
+
+  /*
+   * Get lowest common ancestors for many sets of terms at once.  The argument is a JSON array
+   * of arrays of terms; returns a JSON array with one /lca result per set
+   */
+  public String bulk_lca( String json ) throws IOException
+  {
+    return launch_http_post( "/lca", json );
+  }
+
+  /*
+   * Get a shortest path between two terms along subclass and part-of links
+   */
+  public String shortestpath( String from, String to ) throws IOException
+  {
+    return launch_http( "/shortestpath/" + encode( from + "," + to ) );
+  }
+
+  /*
+   * Get a small subgraph connecting the given comma-separated terms, along subclass and
+   * part-of links
+   */
+  public String subgraph( String terms ) throws IOException
+  {
+    return launch_http( "/subgraph/" + encode( terms ) );
+  }
+
+  /*
+   * Get the Resnik and Lin similarities of two terms
+   */
+  public String similarity( String term1, String term2 ) throws IOException
+  {
+    return launch_http( "/similarity/" + encode( term1 + "," + term2 ) + "?json" );
+  }
+
+  /*
+   * Get the k terms most similar to a given term; measure is "lin" or "resnik"
+   */
+  public String mostsimilar( String term, int k, String measure ) throws IOException
+  {
+    return launch_http( "/mostsimilar/" + encode( term ) + "?json&k=" + k + "&measure=" + encode( measure ) );
+  }
+
   /*
    * Attempt to add label to given term
    */
@@ -117,6 +252,16 @@ public class KBCaller
     launch_http( "/addlabel/" + encode( exp ) );
   }
 
+  /*
+   * Evaluate many queries in one request.  The argument is a JSON array of
+   * {"op": ..., "expression": ...} objects, where op is subterms, parents, labels, etc.
+   * Returns a JSON array with one {"op": ..., "expression": ..., "result": ...} per query, in order.
+   */
+  public String batch( String json ) throws IOException
+  {
+    return launch_http_post( "/batch", json );
+  }
+
   private String encode( String exp )
   {
     try
@@ -162,6 +307,46 @@ public class KBCaller
     return sc.useDelimiter("\\A").next();
   }
 
+  private String launch_http_post( String cmd, String body ) throws IOException
+  {
+    URL u;
+    HttpURLConnection c;
+
+    try
+    {
+      u = new URL(url + cmd);
+      c = (HttpURLConnection) u.openConnection();
+
+      c.setConnectTimeout(2000);
+      c.setReadTimeout(60000);
+      c.setRequestMethod("POST");
+      c.setDoOutput(true);
+    }
+    catch ( Exception e )
+    {
+      throw new IOException("Could not connect to OWLKB");
+    }
+
+    c.setRequestProperty( "Accept", "application/json" );
+    c.setRequestProperty( "Content-Type", "application/json" );
+
+    OutputStream os = c.getOutputStream();
+    os.write( body.getBytes("UTF-8") );
+    os.close();
+
+    Scanner sc = null;
+    try
+    {
+      sc = new Scanner(c.getInputStream( ), "UTF-8" );
+    }
+    catch( Exception e )
+    {
+      throw new IOException("Could not read from OWLKB");
+    }
+
+    return sc.useDelimiter("\\A").next();
+  }
+
   private ArrayList<String> parse_json_dont_clutter_top_of_file_with_code( String j ) throws IOException
   {
     ArrayList<String> L = new ArrayList<String>();
@@ -21,10 +21,38 @@
 import java.io.File;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.semanticweb.elk.owlapi.ElkReasonerFactory;
 import org.semanticweb.owlapi.reasoner.OWLReasoner;
@@ -40,9 +68,7 @@ import org.semanticweb.owlapi.io.OWLOntologyCreationIOException;
 import org.semanticweb.owlapi.io.OWLOntologyInputSourceException;
 import org.coode.owlapi.manchesterowlsyntax.ManchesterOWLSyntaxEditorParser;
 import org.semanticweb.owlapi.util.BidirectionalShortFormProvider;
-import org.semanticweb.owlapi.util.BidirectionalShortFormProviderAdapter;
-import org.semanticweb.owlapi.util.AnnotationValueShortFormProvider;
-import org.semanticweb.owlapi.util.OWLOntologyImportsClosureSetProvider;
+import org.semanticweb.owlapi.util.SimpleShortFormProvider;
 import org.semanticweb.owlapi.expression.OWLEntityChecker;
 import org.semanticweb.owlapi.expression.ShortFormEntityChecker;
 
@@ -66,16 +92,40 @@ public class Owlkb
   public boolean getCountsFromFeather; // For easy reversion in case SPARQL doesn't work
   public String openPhactsAppId;  // For querying openPHACTS API
   public String openPhactsAppKey; // For querying openPHACTS API
+  public int threads;       // Number of requests handled in parallel.  Default: number of processors
+  public boolean virtualThreads; // Whether to handle each request on its own virtual thread.  Default: false
+  public long resultCacheBytes; // Size bound of the query result cache, in bytes.  Default: 64MB
+  public int parseCacheEntries; // Number of parsed class expressions to remember.  Default: 10000
+  public int compressMinBytes;  // Smallest response to gzip/deflate, or -1 to never compress.  Default: 1024
+  public String fullTextProps;  // Annotation properties searched by /fulltext: comma-separated IRIs or short forms, or "all".  Default: "all"
+  public String pathEdges;      // Edges /shortestpath follows: "subclass" and/or object properties.  Default: "subclass,regional_part_of,constitutional_part_of"
+  public boolean getPathsFromFeather; // For easy reversion to the remote shortest-path and subgraph service.  Default: false
 
   /*
    * Variables to be initialized elsewhere than the command-line
    */
   OWLDataFactory df;
-  BidirectionalShortFormProvider shortformProvider;
-  BidirectionalShortFormProviderAdapter annotProvider;
-  OWLOntologyImportsClosureSetProvider ontSet;
+  EntityDictionary shortformProvider;
   Set<OWLOntology> importClosure;
   OWLAnnotationProperty rdfsLabel;
+  ReentrantReadWriteLock kbLock;  // Queries hold the read lock, ontology changes hold the write lock
+  ReentrantReadWriteLock reasonerLock;  // Reasoner queries hold the read lock, reclassification holds the write lock
+  ExecutorService writerLane;     // Single thread on which all ontology changes are applied, in order
+  boolean unsavedChanges;         // Set by ontology changes; only touched on the writer lane
+  AtomicLong ontologyGeneration;  // Bumped whenever the ontology changes
+  ResultCache resultCache;
+  String bootId;                  // Distinguishes ETags from different runs of the server
+  ExpressionCache expressionCache;
+  BlockingQueue<ResponseEncoder> responseEncoders;  // Idle encoders, at most one per worker thread
+  ExecutorService batchPool;      // Evaluates the items of /batch requests in parallel
+  LabelIndex labelIndex;          // rdfs:labels of every entity, so result rows don't scan the import closure
+  FullTextIndex fullTextIndex;    // Inverted index over annotation values, for /fulltext
+  volatile Taxonomy taxonomy;     // Snapshot of the inferred class hierarchy; replaced (not changed) by addTerm
+  PathGraph.Links pathLinks;      // Asserted part-of links between classes, for /shortestpath
+  volatile PathGraph pathGraph;   // Graph /shortestpath searches, rebuilt along with the taxonomy
+  AtomicLong snapshotQueries, snapshotNanos, reasonerQueries, reasonerNanos;
+
+  static AsyncLogger logger = AsyncLogger.start( 16384 );
 
   public static void main(String [] args) throws Exception
   {
@@ -136,23 +186,26 @@ public class Owlkb
      * Load the ontologies imported by the main ontology (e.g., the reference ontologies)
      */
     importClosure = ont.getImportsClosure();
-    ontSet = new OWLOntologyImportsClosureSetProvider(manager, ont);
 
     /*
      * Establish infrastructure for converting long URLs to short IRIs and vice versa
      * (e.g., converting between "http://purl.org/obo/owlapi/quality#PATO_0000014" and "PATO_0000014")
      */
-    shortformProvider = new BidirectionalShortFormProviderAdapter(manager, importClosure, new org.semanticweb.owlapi.util.SimpleShortFormProvider());
+    shortformProvider = new EntityDictionary( importClosure );
+    manager.addOntologyChangeListener( shortformProvider );
     OWLEntityChecker entityChecker = new ShortFormEntityChecker(shortformProvider);
+    logString( "Numbered "+shortformProvider.size()+" entities." );
 
     /*
      * Infrastructure for searching for classes by label
      */
-    List<OWLAnnotationProperty> labeltypeList = new ArrayList<OWLAnnotationProperty>();
-    labeltypeList.add(rdfsLabel);
-    Map<OWLAnnotationProperty,List<String>> emptyMap = new HashMap<OWLAnnotationProperty,List<String>>();
-    AnnotationValueShortFormProvider preAnnotProvider = new AnnotationValueShortFormProvider(labeltypeList, emptyMap, ontSet );
-    annotProvider = new BidirectionalShortFormProviderAdapter(manager, importClosure, preAnnotProvider);
+    logString( "Indexing labels..." );
+    labelIndex = new LabelIndex( ont );
+    logString( "Indexed labels of "+labelIndex.size()+" entities." );
+
+    logString( "Indexing annotations for full-text search..." );
+    fullTextIndex = new FullTextIndex( fullTextProps );
+    logString( "Indexed "+fullTextIndex.terms()+" words in annotations of "+fullTextIndex.docs+" entities." );
 
     /*
      * Initiate the reasoner
@@ -181,6 +234,18 @@ public class Owlkb
 
     logString( "Finished precomputing inferences (took "+(System.nanoTime()-startTime)/1000000+"ms)" );
 
+    /*
+     * Copy the inferred hierarchy into int arrays, to answer hierarchy queries about named classes
+     */
+    logString( "Copying the class hierarchy..." );
+    taxonomy = Taxonomy.fromReasoner( this, r );
+    logString( "Copied "+taxonomy.nodeCount()+" classes ("+taxonomy.edgeCount()+" subclass links, "+taxonomy.bytes()/1024+"KB) in "+taxonomy.buildMillis+"ms." );
+
+    logString( "Building the graph for shortest paths..." );
+    pathLinks = collectPathLinks( pathEdges );
+    pathGraph = new PathGraph( taxonomy, pathLinks );
+    logString( "Graph has "+pathGraph.edgeCount()+" edges ("+pathLinks.size+" part-of links)." );
+
     /*
      * Launch HTTP server
      */
@@ -199,6 +264,14 @@ public class Owlkb
     server.createContext("/instances", new NetHandler("instances", r, manager, ont, entityChecker, iri));
     server.createContext("/labels", new NetHandler("labels", r, manager, ont, entityChecker, iri));
     server.createContext("/search", new NetHandler("search", r, manager, ont, entityChecker, iri));
+    server.createContext("/autocomplete", new NetHandler("autocomplete", r, manager, ont, entityChecker, iri));
+    server.createContext("/fuzzysearch", new NetHandler("fuzzysearch", r, manager, ont, entityChecker, iri));
+    server.createContext("/fulltext", new NetHandler("fulltext", r, manager, ont, entityChecker, iri));
+    server.createContext("/issubclass", new NetHandler("issubclass", r, manager, ont, entityChecker, iri));
+    server.createContext("/count", new NetHandler("count", r, manager, ont, entityChecker, iri));
+    server.createContext("/lca", new NetHandler("lca", r, manager, ont, entityChecker, iri));
+    server.createContext("/similarity", new NetHandler("similarity", r, manager, ont, entityChecker, iri));
+    server.createContext("/mostsimilar", new NetHandler("mostsimilar", r, manager, ont, entityChecker, iri));
     server.createContext("/rdfstore", new NetHandler("rdfstore", r, manager, ont, entityChecker, iri));
     server.createContext("/test", new NetHandler("test", r, manager, ont, entityChecker, iri));
     server.createContext("/shortestpath", new NetHandler("shortestpath", r, manager, ont, entityChecker, iri));
@@ -206,9 +279,12 @@ public class Owlkb
     server.createContext("/subgraph", new NetHandler("subgraph", r, manager, ont, entityChecker, iri));
     server.createContext("/similar_molecules", new NetHandler("similar_molecules", r, manager, ont, entityChecker, iri));
 
+    server.createContext("/batch", new NetHandler("batch", r, manager, ont, entityChecker, iri));
+    server.createContext("/stats", new NetHandler("stats", r, manager, ont, entityChecker, iri));
+
     server.createContext("/gui", new NetHandler("gui", r, manager, ont, entityChecker, iri));
 
-    server.setExecutor(null);
+    server.setExecutor( createServerExecutor() );
     server.start();
 
     logString( "Server initiated.");
@@ -234,6 +310,20 @@ public class Owlkb
     }
 
     public void handle(HttpExchange t) throws java.io.IOException
+    {
+      long startTime = System.nanoTime();
+
+      try
+      {
+        handleRequest( t );
+      }
+      finally
+      {
+        logAccess( t, startTime );
+      }
+    }
+
+    public void handleRequest(HttpExchange t) throws java.io.IOException
     {
       if ( srvType.equals("gui") )
       {
@@ -241,6 +331,36 @@ public class Owlkb
         return;
       }
 
+      if ( srvType.equals("stats") )
+      {
+        sendResponse( t, computeStatsResponse(), true );
+        return;
+      }
+
+      if ( srvType.equals("batch") )
+      {
+        handleBatch( t );
+        return;
+      }
+
+      if ( (srvType.equals("labels") || srvType.equals("search")) && t.getRequestMethod().equalsIgnoreCase("POST") )
+      {
+        handleBulkLookup( t );
+        return;
+      }
+
+      if ( srvType.equals("issubclass") && t.getRequestMethod().equalsIgnoreCase("POST") )
+      {
+        handleBulkIssubclass( t );
+        return;
+      }
+
+      if ( srvType.equals("lca") && t.getRequestMethod().equalsIgnoreCase("POST") )
+      {
+        handleBulkLca( t );
+        return;
+      }
+
       Headers requestHeaders = t.getRequestHeaders();
       boolean fJson = ( requestHeaders.get("Accept") != null && requestHeaders.get("Accept").contains("application/json") );
       boolean verbose = false;
@@ -275,535 +395,2389 @@ public class Owlkb
 
       req = URLDecode(req);
 
-      if ( checkForNonEL( req, t ) )
+      if ( !isTextSearch( srvType ) && checkForNonEL( req, t ) )
         return;
 
-      logString( "Got request: ["+req+"]" );
+      logDebug( "Got request: ["+req+"]" );
       long startTime = System.nanoTime();
 
-      if ( srvType.equals("labels") || srvType.equals("search") )
+      /*
+       * Answers only change when the ontology does, so clients can revalidate with If-None-Match
+       */
+      if ( isCacheable( srvType ) )
       {
-        boolean isLabels = srvType.equals("labels");
+        String etag = computeETag( srvType, req, args, fJson, verbose, longURI, ontologyGeneration.get() );
 
-        ArrayList<String> terms = (isLabels ? getLabels( req, o ) : SearchByLabel( req, o, verbose ));
+        if ( etagMatches( requestHeaders, etag ) )
+        {
+          sendNotModified( t, etag );
+          return;
+        }
 
-        if ( terms == null || terms.isEmpty() )
-          response = (isLabels ? "No class by that shortform." : "No class with that label.");
-        else
-          response = computeResponse( terms, fJson, false, verbose && !isLabels );
-      }
-      else
-      if ( srvType.equals("addlabel") )
-        response = computeAddlabelResponse( o, iri, m, req, fJson );
-      else
-      if ( srvType.equals("rdfstore") )
-        response = computeRdfstoreResponse( o, iri, m, ec, r, req );
-      else
-      if ( srvType.equals("apinatomy") )
-      {
-        response = computeApinatomyResponse( o, iri, m, r, req );
-        fJson = true;
+        t.getResponseHeaders().set( "ETag", etag );
       }
-      else
-      if ( srvType.equals("generate-triples") )
-      {
-        if ( t.getRemoteAddress().getAddress().isLoopbackAddress() )
-          response = computeGenerateTriplesResponse( o, iri, m, r, req );
-        else
-          response = "{\"error\": \"Only requests originating from localhost can run generate-triples\"}";
 
+      response = computeQueryResponse( t, srvType, req, args, fJson, verbose, longURI, startTime );
+
+      if ( response == null )  // Already streamed to the client
+        return;
+
+      if ( srvType.equals("apinatomy")
+      ||   srvType.equals("generate-triples")
+      ||   srvType.equals("shortestpath")
+      ||   srvType.equals("similar_molecules")
+      ||   srvType.equals("subgraph") )
         fJson = true;
+
+      String callback = args.get("callback"); // JSONP support
+      if ( callback != null )
+      {
+        String jsonpHeader = "typeof "+callback+" === 'function' && "+callback+"(\n";
+        response = jsonpHeader + response + ");";
       }
-      else
-      if ( srvType.equals("shortestpath") )
+
+      logDebug( "Transmitting response..." );
+
+      sendResponse( t, response, fJson );
+    }
+
+    /*
+     * Evaluate a POSTed JSON array of {"op": ..., "expression": ...} objects, e.g.
+     * [{"op": "subterms", "expression": "FMA_50801"}, {"op": "labels", "expression": "FMA_50801"}].
+     * Items are evaluated in parallel on the batch pool, and the results are streamed back in
+     * order, as a JSON array of {"op": ..., "expression": ..., "result": ...} objects.  Only a
+     * bounded window of items is in flight at once, so a huge batch doesn't pile up results.
+     */
+    public void handleBatch( HttpExchange t ) throws java.io.IOException
+    {
+      long startTime = System.nanoTime();
+
+      if ( !t.getRequestMethod().equalsIgnoreCase("POST") )
       {
-        response = computeShortestpathResponse( o, iri, m, r, req );
-        fJson = true;
+        sendResponse( t, "{\"error\": \"POST a JSON array of {\\\"op\\\": ..., \\\"expression\\\": ...} objects\"}", true );
+        return;
       }
-      else
-      if ( srvType.equals("similar_molecules") )
+
+      String query = t.getRequestURI().getRawQuery();
+      Map<String,String> args = ( query != null ) ? getArgs( query ) : new HashMap<String,String>();
+      final boolean verbose = args.containsKey( "verbose" );
+      final boolean longURI = args.containsKey( "longURI" );
+
+      List<?> items;
+
+      try
       {
-        response = computeSimilarMoleculesResponse( o, iri, m, r, ec, req );
-        fJson = true;
+        Object parsed = JsonParser.parse( readRequestBody( t ) );
+
+        if ( !(parsed instanceof List) )
+          throw new IllegalArgumentException( "Expected a JSON array" );
+
+        items = (List<?>) parsed;
       }
-      else
-      if ( srvType.equals("subgraph") )
+      catch( Exception e )
       {
-        response = computeSubgraphResponse( o, iri, m, r, req );
-        fJson = true;
+        sendResponse( t, "{\"error\": \"Could not parse the batch: " + escapeJSON( String.valueOf( e.getMessage() ) ) + "\"}", true );
+        return;
       }
-      else
+
+      Headers h = t.getResponseHeaders();
+      addCacheHeaders( h );
+      h.add("Content-Type", "application/json");
+      t.sendResponseHeaders(200, 0);
+
+      java.io.Writer w = new java.io.BufferedWriter( new java.io.OutputStreamWriter( t.getResponseBody(), java.nio.charset.StandardCharsets.UTF_8 ), 8192 );
+      ArrayDeque<Future<String>> window = new ArrayDeque<Future<String>>();
+      int windowSize = 4 * threads;
+      int next = 0;
+
       try
       {
-        OWLClassExpression exp;
-        String manchesterError = "";
+        w.write( "[\n" );
 
-        if ( uclSyntax != null )
+        for ( int i = 0; i < items.size(); i++ )
         {
-          String lolsReply = queryURL( uclSyntax + URLEncode(req) );
+          while ( next < items.size() && next - i < windowSize )
+            window.add( batchPool.submit( batchItemTask( t, items.get(next++), verbose, longURI ) ) );
 
-          if ( lolsReply == null )
+          String result;
+
+          try
           {
-            exp = parseManchester( req, o, ec );
-            if ( exp == null )
-              manchesterError = "Could not connect to LOLS for UCL syntax parsing";
+            result = window.poll().get();
           }
-          else
+          catch( Exception e )
           {
-            String error = naiveJsonParse( lolsReply, "Error" );
-            if ( error != null && !error.trim().equals("") )
-            {
-              manchesterError = error.trim();
-              exp = null;
-            }
-            else
-            {
-              String ambigs = naiveJsonParse( lolsReply, "Ambiguities", "\n  [", "\n  ]" );
-              if ( ambigs != null && !ambigs.trim().equals("") )
-              {
-                manchesterError = "{\n  \"Ambiguities\":\n  [\n    " + ambigs.trim() + "\n  ]\n}";
-                exp = null;
-              }
-              else
-              {
-                String uclToManchester = naiveJsonParse( lolsReply, "Result" );
-                if ( uclToManchester == null )
-                {
-                  manchesterError = lolsReply.trim();
-                  exp = null;
-                }
-                else
-                {
-                  exp = parseManchester( uclToManchester, o, ec );
-                  if ( exp == null )
-                  {
-                    String possibleError = naiveJsonParse( lolsReply, "Possible_error" );
-                    if ( possibleError != null )
-                      manchesterError = possibleError;
-                  }
-                }
-              }
-            }
+            result = "{\"error\": \"There was an error getting the results.\"}";
           }
-        }
-        else
-          exp = parseManchester( req, o, ec );
-
-        if ( exp == null )
-        {
-          if ( !manchesterError.equals("") )
-            response = manchesterError;
-          else
-            response = "Malformed Manchester query";
-        }
-        else
-        {
-          if ( srvType.equals("subterms")
-          ||   srvType.equals("siblings")
-          ||   srvType.equals("parents")
-          ||   srvType.equals("children")
-          ||   srvType.equals("eqterms")
-          ||   srvType.equals("instances")
-          ||   srvType.equals("terms") )
-          {
-            ArrayList<String> terms = null;
 
-            if ( srvType.equals("subterms") )
-              terms = getSubTerms(exp,r,false,false,verbose);
-            else if ( srvType.equals("siblings") )
-              terms = getSiblings(exp,r,false,false,verbose);
-            else if ( srvType.equals("parents") )
-              terms = getParents(exp,r,false,false,verbose);
-            else if ( srvType.equals("children") )
-              terms = getChildren(exp,r,false,false,verbose);
-            else if ( srvType.equals("eqterms") )
-              terms = addTerm(exp,r,m,o,iri,verbose );
-            else if ( srvType.equals("instances") )
-              terms = getInstances(exp,r,verbose);
-            else if ( srvType.equals("terms") )
-              terms = getTerms(exp,r,verbose);
+          if ( i > 0 )
+            w.write( ",\n" );
 
-            response = computeResponse( terms, fJson, longURI, verbose );
-          }
-          else if ( srvType.equals("subhierarchy") )
-          {
-            response = computeSubhierarchyResponse( exp, r );
-          }
-          else if ( srvType.equals("test") )
-            response = computeDemoResponse( exp, r, m, o, iri, startTime, fJson, verbose );
-          else
-            response = "Unrecognized request";
+          w.write( result );
         }
+
+        w.write( "\n]" );
       }
-      catch(Exception e)
+      finally
       {
-        response = "There was an error getting the results.";
+        for ( Future<String> f : window )
+          f.cancel( false );
+
+        w.close();
       }
 
-      String callback = args.get("callback"); // JSONP support
-      if ( callback != null )
+      long runTime = (System.nanoTime() - startTime) / 1000000;
+      logDebug( "Batch of "+items.size()+" queries took "+runTime+"ms." );
+    }
+
+    public Callable<String> batchItemTask( final HttpExchange t, final Object item, final boolean verbose, final boolean longURI )
+    {
+      return new Callable<String>()
       {
-        String jsonpHeader = "typeof "+callback+" === 'function' && "+callback+"(\n";
-        response = jsonpHeader + response + ");";
-      }
+        public String call() throws Exception
+        {
+          if ( !(item instanceof Map) )
+            return "{\"error\": \"Batch items must be objects with op and expression\"}";
 
-      logString( "Transmitting response..." );
+          Object op = ((Map<?,?>) item).get("op");
+          Object expression = ((Map<?,?>) item).get("expression");
 
-      sendResponse( t, response, fJson );
+          if ( !(op instanceof String) || !(expression instanceof String) )
+            return "{\"error\": \"Batch items must be objects with op and expression\"}";
 
-      /*
-       * Measure computation time in ms.
-       */
-      long runTime = (System.nanoTime() - startTime) / 1000000;
-      logString( "It took "+runTime+"ms to handle the request." );
+          StringBuilder sb = new StringBuilder();
+          sb.append( "{\"op\": \"" ).append( escapeJSON( (String) op ) );
+          sb.append( "\", \"expression\": \"" ).append( escapeJSON( (String) expression ) ).append( "\", " );
+
+          String response;
+
+          if ( !isBatchable( (String) op ) )
+            response = "Unrecognized op";
+          else
+          {
+            response = nonELError( (String) expression );
+
+            if ( response == null )
+              response = computeQueryResponse( t, (String) op, (String) expression, new HashMap<String,String>(), true, verbose, longURI, System.nanoTime() );
+          }
+
+          if ( response.startsWith("[") || response.startsWith("{") )
+            sb.append( "\"result\": " ).append( response );
+          else
+            sb.append( "\"error\": \"" ).append( escapeJSON( response ) ).append( "\"" );
+
+          return sb.append( "}" ).toString();
+        }
+      };
     }
-  }
 
-  public boolean checkForNonEL( String req, HttpExchange t )
-  {
     /*
-     * To do: improve this function, which is currently just a bandaid
+     * Look up many shortforms (POST /labels) or labels (POST /search) at once.  The body is a
+     * JSON array of strings, and the response is a JSON object mapping each of them to its
+     * labels (or matching terms), or to null if there are none.  The lookups are split into
+     * chunks resolved in parallel on the batch pool.
      */
-    try
+    public void handleBulkLookup( HttpExchange t ) throws java.io.IOException
     {
-      String lower = req.toLowerCase();
+      String query = t.getRequestURI().getRawQuery();
+      Map<String,String> args = ( query != null ) ? getArgs( query ) : new HashMap<String,String>();
+      final boolean longURI = args.containsKey( "longURI" );
+      final boolean isLabels = srvType.equals("labels");
+      final List<String> keys = new ArrayList<String>();
 
-      if ( lower.contains(" or ") )
+      try
       {
-        sendResponse( t, "Disjunction ('or') is forbidden because it would make the ontology non-EL.", false );
-        return true;
+        Object parsed = JsonParser.parse( readRequestBody( t ) );
+
+        if ( !(parsed instanceof List) )
+          throw new IllegalArgumentException( "Expected a JSON array of strings" );
+
+        for ( Object x : new LinkedHashSet<Object>( (List<?>) parsed ) )
+        {
+          if ( !(x instanceof String) )
+            throw new IllegalArgumentException( "Expected a JSON array of strings" );
+
+          keys.add( (String) x );
+        }
       }
-      if ( lower.contains(" not ") || lower.substring(0,4).equals("not ") )
+      catch( Exception e )
       {
-        sendResponse( t, "Negation ('not') is forbidden because it would make the ontology non-EL.", false );
-        return true;
+        sendResponse( t, "{\"error\": \"Could not parse the request: " + escapeJSON( String.valueOf( e.getMessage() ) ) + "\"}", true );
+        return;
       }
 
-      return false;
-    }
-    catch ( Exception e )
-    {
-      return false;
-    }
-  }
+      int chunkSize = Math.max( 256, (keys.size() + threads - 1) / threads );
+      List<Future<String>> chunks = new ArrayList<Future<String>>();
 
-  public void sendResponse( HttpExchange t, String response, boolean fJson ) throws java.io.IOException
-  {
-    Headers h = t.getResponseHeaders();
-    h.add("Cache-Control", "no-cache, no-store, must-revalidate");
-    h.add("Pragma", "no-cache");
-    h.add("Expires", "0");
+      for ( int start = 0; start < keys.size(); start += chunkSize )
+      {
+        final int from = start, to = Math.min( keys.size(), start + chunkSize );
 
-    if ( fJson )
-      h.add("Content-Type", "application/json");
+        chunks.add( batchPool.submit( new Callable<String>()
+        {
+          public String call()
+          {
+            StringBuilder sb = new StringBuilder();
+            Lock lock = kbLock.readLock();
+            lock.lock();
 
-    t.sendResponseHeaders(200,response.getBytes().length);
-    java.io.OutputStream os = t.getResponseBody();
-    os.write(response.getBytes());
-    os.close();
+            try
+            {
+              for ( int i = from; i < to; i++ )
+              {
+                String key = keys.get(i);
+                ArrayList<String> values = isLabels ? getLabels( key, o ) : SearchByLabel( key, o, false );
 
-    logString( "Response transmitted.");
-  }
+                if ( i > 0 )
+                  sb.append( ",\n" );
 
-  private ArrayList<String> getSubTerms(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
-  {
-    ArrayList<String> idList = new ArrayList<String>();
-    NodeSet<OWLClass> subClasses = r.getSubClasses(exp, direct);
+                sb.append( " \"" ).append( escapeJSON( key ) ).append( "\": " );
 
-    for ( Node<OWLClass> owlClassNode : subClasses )
-      classToTermlist( owlClassNode, idList, longURI, verbose );
+                if ( values == null || values.isEmpty() )
+                {
+                  sb.append( "null" );
+                  continue;
+                }
 
-    return idList;
-  }
+                sb.append( "[" );
 
-  private ArrayList<String> getParents(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
-  {
-    Set<Node<OWLClass>> parentNodes = r.getSuperClasses( exp, true ).getNodes();
-    ArrayList<String> idList = new ArrayList<String>();
+                for ( int j = 0; j < values.size(); j++ )
+                {
+                  String value = values.get(j);
 
-    for ( Node<OWLClass> n : parentNodes )
-      classToTermlist( n, idList, longURI, verbose );
+                  if ( !isLabels && !longURI )
+                    value = shortformProvider.shortUrlOf( value );
 
-    return idList;
-  }
+                  sb.append( j > 0 ? ", \"" : "\"" ).append( escapeJSON( value ) ).append( "\"" );
+                }
 
-  private ArrayList<String> getChildren(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
-  {
-    Set<Node<OWLClass>> childNodes = r.getSubClasses( exp, true ).getNodes();
-    ArrayList<String> idList = new ArrayList<String>();
+                sb.append( "]" );
+              }
+            }
+            finally
+            {
+              lock.unlock();
+            }
 
-    for ( Node<OWLClass> n : childNodes )
-      classToTermlist( n, idList, longURI, verbose );
-
-    return idList;
-  }
+            return sb.toString();
+          }
+        }));
+      }
 
-  private ArrayList<String> getSiblings(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose )
-  {
-    Set<Node<OWLClass>> parentNodes = r.getSuperClasses( exp, true ).getNodes();
-    HashSet<String> sibs = new HashSet<String>();
+      StringBuilder response = new StringBuilder( "{\n" );
 
-    ArrayList<String> retVal;
+      try
+      {
+        for ( Future<String> chunk : chunks )
+          response.append( chunk.get() );
+      }
+      catch( Exception e )
+      {
+        sendResponse( t, "{\"error\": \"There was an error getting the results.\"}", true );
+        return;
+      }
 
-    if ( verbose )
-      retVal = new ArrayList<String>();
-    else
-      retVal = null;
+      sendResponse( t, response.append( "\n}" ).toString(), true );
+    }
 
-    for ( Node<OWLClass> pnode : parentNodes )
+    /*
+     * Check many subclass relationships at once: the body is a JSON array of [subclass,
+     * superclass] pairs, and the response a JSON array with true or false for each (or null
+     * if either expression could not be parsed)
+     */
+    public void handleBulkIssubclass( HttpExchange t ) throws java.io.IOException
     {
-      OWLClass parent = pnode.getRepresentativeElement();
-      NodeSet<OWLClass> childNodes = r.getSubClasses( parent, true );
-
-      String parentLabel = null, pID = null;
+      List<?> pairs;
 
-      if ( verbose )
+      try
       {
-        parentLabel = labelByClass(parent);
+        Object parsed = JsonParser.parse( readRequestBody( t ) );
 
-        if ( parentLabel == null )
-          parentLabel = "null";
+        if ( !(parsed instanceof List) )
+          throw new IllegalArgumentException( "Expected a JSON array of [subclass, superclass] pairs" );
 
-        pID = shortUrl(parent.getIRI().toString());
-      }
+        pairs = (List<?>) parsed;
 
-      for ( OWLClass c : childNodes.getFlattened() )
+        for ( Object pair : pairs )
+        {
+          if ( !(pair instanceof List) || ((List<?>) pair).size() != 2
+          ||   !(((List<?>) pair).get(0) instanceof String) || !(((List<?>) pair).get(1) instanceof String) )
+            throw new IllegalArgumentException( "Expected a JSON array of [subclass, superclass] pairs" );
+        }
+      }
+      catch( Exception e )
       {
-        String sibID = shortUrl(c.getIRI().toString());
-
-        if ( sibs.contains( sibID ) )
-          continue;
+        sendResponse( t, "{\"error\": \"Could not parse the request: " + escapeJSON( String.valueOf( e.getMessage() ) ) + "\"}", true );
+        return;
+      }
 
-        sibs.add( sibID );
+      StringBuilder sb = new StringBuilder( "[" );
+      Lock lock = kbLock.readLock();
+      lock.lock();
 
-        if ( verbose )
+      try
+      {
+        for ( int i = 0; i < pairs.size(); i++ )
         {
-          String label = labelByClass(c);
+          List<?> pair = (List<?>) pairs.get(i);
+          String result;
 
-          if ( label == null )
-            label = "null";
+          try
+          {
+            Boolean x = isSubclass( (String) pair.get(0), (String) pair.get(1), r, o, ec );
+            result = ( x == null ) ? "null" : x.toString();
+          }
+          catch( RuntimeException e )
+          {
+            result = "{\"error\": \"" + escapeJSON( e.getMessage() == null ? "There was an error getting the results." : e.getMessage() ) + "\"}";
+          }
 
-          String jsObj = "{\n   \"sibling\":\""+sibID+"\",\n   \"label\":\""+label+"\",\n   \"parent\":\""+pID+"\",\n   \"parent_label\":\""+parentLabel+"\"\n}";
-          retVal.add(jsObj);
+          sb.append( i == 0 ? "\n " : ",\n " ).append( result );
         }
       }
-    }
-
-    if ( verbose )
-      return retVal;
-    else
-      return new ArrayList<String>(sibs);
-  }
-
-  private ArrayList<String> getInstances(OWLClassExpression exp, OWLReasoner r, boolean verbose)
-  {
-    ArrayList<String> idList = new ArrayList<String>();
-    NodeSet<OWLNamedIndividual> inst = r.getInstances(exp, false);
+      finally
+      {
+        lock.unlock();
+      }
 
-    for (Node<OWLNamedIndividual> ind : inst)
-      individualToTermlist( ind, idList, false, verbose );
+      sendResponse( t, sb.append( "\n]" ).toString(), true );
+    }
 
-    return idList;
-  }
+    /*
+     * POST /lca with a JSON array of term lists, e.g. [["A","B"],["C","D","E"]], answers with
+     * a JSON array of the corresponding /lca results
+     */
+    public void handleBulkLca( HttpExchange t ) throws java.io.IOException
+    {
+      List<?> sets;
 
-  private ArrayList<String> getEquivalentTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
-  {
-    ArrayList<String> idList = new ArrayList<String>();
-    Node<OWLClass> equivalentClasses = r.getEquivalentClasses(exp);
+      try
+      {
+        Object parsed = JsonParser.parse( readRequestBody( t ) );
 
-    for ( OWLClass c : equivalentClasses.getEntities() )
-      objToTermlist( c, idList, false, verbose );
+        if ( !(parsed instanceof List) )
+          throw new IllegalArgumentException( "Expected a JSON array of arrays of terms" );
 
-    return idList;
-  }
+        sets = (List<?>) parsed;
 
-  public String labelByClass(OWLEntity c)
-  {
-    for ( OWLOntology imp : importClosure )
-    {
-      Set<OWLAnnotation> annots = c.getAnnotations( imp, rdfsLabel );
+        for ( Object set : sets )
+        {
+          if ( !(set instanceof List) || ((List<?>) set).isEmpty() )
+            throw new IllegalArgumentException( "Expected a JSON array of arrays of terms" );
 
-      for ( OWLAnnotation a : annots )
+          for ( Object term : (List<?>) set )
+          {
+            if ( !(term instanceof String) )
+              throw new IllegalArgumentException( "Expected a JSON array of arrays of terms" );
+          }
+        }
+      }
+      catch( Exception e )
       {
-        if ( a.getValue() instanceof OWLLiteral )
-          return ((OWLLiteral)a.getValue()).getLiteral();
+        sendResponse( t, "{\"error\": \"Could not parse the request: " + escapeJSON( String.valueOf( e.getMessage() ) ) + "\"}", true );
+        return;
       }
-    }
-
-    return null;
-  }
 
-  public ArrayList<String> getLabels(String shortform, OWLOntology o )
-  {
-    OWLEntity e = shortformProvider.getEntity(shortform);
-
-    if ( e == null )
-      return null;
+      StringBuilder sb = new StringBuilder( "[" );
+      Lock lock = kbLock.readLock();
+      lock.lock();
 
-    ArrayList<String> idList = new ArrayList<String>();
+      try
+      {
+        for ( int i = 0; i < sets.size(); i++ )
+        {
+          List<String> terms = new ArrayList<String>();
 
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel );
+          for ( Object term : (List<?>) sets.get(i) )
+            terms.add( (String) term );
 
-    if ( annots.isEmpty() )
-    {
-      for ( OWLOntology imp : importClosure )
+          sb.append( i == 0 ? "\n" : ",\n" ).append( computeLcaJson( terms, o, ec ) );
+        }
+      }
+      finally
       {
-        annots = e.getAnnotations( imp, rdfsLabel );
-        if ( !annots.isEmpty() )
-          break;
+        lock.unlock();
       }
-    }
 
-    if ( annots.isEmpty() )
-      idList.add( "(Unlabeled class)" );   //To do: create "advanced commandline options" one of which chooses Queen's vs. American English
-    else
-    for ( OWLAnnotation a : annots )
-    {
-      if ( a.getValue() instanceof OWLLiteral )
-        idList.add( ((OWLLiteral)a.getValue()).getLiteral() );
+      sendResponse( t, sb.append( "\n]" ).toString(), true );
     }
 
-    return idList;
-  }
-
-  public ArrayList<String> SearchByLabel(String label, OWLOntology o, boolean verbose )
-  {
-    Set<OWLEntity> ents = annotProvider.getEntities(label);
-
-    if ( ents == null || ents.isEmpty() )
-      return null;
-
-    ArrayList<String> idList = new ArrayList<String>();
-
-    for ( OWLEntity e : ents )
+    /*
+     * Ops that can appear in a batch: those whose response only depends on the expression.
+     * eqterms is left out because it can add a class to the ontology.
+     */
+    public boolean isBatchable( String op )
     {
-      if ( e.isOWLClass() && !e.asOWLClass().isAnonymous() )
-        objToTermlist( e, idList, false, verbose );
+      return op.equals("subterms")
+      ||     op.equals("siblings")
+      ||     op.equals("parents")
+      ||     op.equals("children")
+      ||     op.equals("instances")
+      ||     op.equals("terms")
+      ||     op.equals("subhierarchy")
+      ||     op.equals("labels")
+      ||     op.equals("search")
+      ||     op.equals("issubclass")
+      ||     op.equals("count")
+      ||     op.equals("lca")
+      ||     op.equals("similarity");
     }
 
-    return idList;
-  }
-
-  public ArrayList<String> getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
-  {
-    ArrayList<String> idList = new ArrayList<String>();
-
-    idList.addAll(getEquivalentTerms(exp,r,verbose));
-    idList.addAll(getSubTerms(exp,r,false,false,verbose));
-
-    return idList;
-  }
-
-  public ArrayList<String> addTerm(OWLClassExpression exp, OWLReasoner r, OWLOntologyManager mgr, OWLOntology ont, IRI iri, boolean verbose )
-  {
-    ArrayList<String> idList = getEquivalentTerms(exp,r,verbose);
-    if(idList.isEmpty())
+    /*
+     * Queries share the knowledgebase, and their responses are cached.  Requests that change it
+     * queue their changes on the writer lane (see applyOntologyChange), and take the locks they
+     * need themselves.
+     */
+    public String computeQueryResponse( HttpExchange t, String op, String req, Map<String,String> args, boolean fJson, boolean verbose, boolean longURI, long startTime ) throws java.io.IOException
     {
-      String ricordoID = String.valueOf(System.currentTimeMillis());
-      OWLClass newOwlClass = df.getOWLClass(IRI.create(kbNs + ricordoID));
-
-      mgr.addAxiom(ont, df.getOWLEquivalentClassesAxiom(newOwlClass, exp) );
+      if ( isMutator( op ) )
+        return computeDispatchedResponse( t, op, req, args, fJson, verbose, longURI, startTime ).response;
 
-      if ( reasonerName.equals("elk") )
-        r.flush();
-
-      maybeSaveOntology( ont, iri, mgr );
-
-      objToTermlist( newOwlClass, idList, false, verbose );
-      r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
-    }
-
-    return idList;
-  }
-
-  public static String shortUrl(String url)
-  {
-    int i = url.lastIndexOf("#");
-
-    if ( i != -1 )
-      return url.substring(i+1);
-
-    i = url.lastIndexOf("/");
-    int j = url.indexOf("/");
+      String response;
+      String cacheKey = ( isCacheable( op ) && !wantsStream( op, args ) && !args.containsKey("reasoner") ) ? resultCacheKey( op, req, fJson, verbose, longURI ) + argsKey( args ) : null;
+      Lock lock = kbLock.readLock();
+      lock.lock();
 
-    if ( i != j )
-      return url.substring(i+1);
+      try
+      {
+        long generation = ontologyGeneration.get();
 
-    return url;
-  }
+        response = ( cacheKey != null ) ? resultCache.get( cacheKey, generation ) : null;
 
-  /*
-   * Basic logging to stdout
-   */
-  public static void logString( String x )
-  {
-    System.out.println( x );
-  }
+        if ( response == null )
+        {
+          QueryResponse computed = computeDispatchedResponse( t, op, req, args, fJson, verbose, longURI, startTime );
+          response = computed.response;
 
-  public String computeResponse( ArrayList<String> terms, boolean fJson, boolean longURI, boolean verbose )
-  {
-    StringBuilder x = new StringBuilder();
+          if ( cacheKey != null && computed.cacheable )
+            resultCache.put( cacheKey, response, generation );
+        }
+      }
+      finally
+      {
+        lock.unlock();
+      }
 
-    if ( verbose )
-    {
-      boolean fFirst = false;
-      x.append("{\n \"results\":\n [\n  " );
+      StreamedQuery streamed = ( response == null ) ? (StreamedQuery) t.getAttribute( STREAMED_QUERY ) : null;
 
-      for ( String js : terms )
+      if ( streamed != null )
       {
-        if ( !fFirst )
-          fFirst = true;
-        else
-          x.append( ",\n  " );
-
-        x.append( js );
+        try
+        {
+          streamResponse( t, streamed, r, fJson, verbose, longURI, "ndjson".equals( args.get("stream") ) );
+        }
+        catch( java.io.IOException e )
+        {
+          logDebug( "Client stopped receiving the streamed response." );
+        }
       }
 
-      x.append("\n ]\n}");
-
-      return x.toString();
+      return response;
     }
 
-    if ( fJson )
+    /*
+     * Compute the response to a request for the given op (normally this handler's srvType).
+     * Errors that mustn't be cached, e.g. because the expression couldn't be parsed or LOLS
+     * couldn't be reached, come back marked as not cacheable.
+     */
+    public QueryResponse computeDispatchedResponse( HttpExchange t, String op, String req, Map<String,String> args, boolean fJson, boolean verbose, boolean longURI, long startTime )
     {
-      x.append("[\n ");
-      boolean fFirst = false;
+      String response;
+      boolean cacheable = true;
 
-      for ( String termp : terms )
+      if ( op.equals("labels") || op.equals("search") )
       {
-        if ( !fFirst )
-          fFirst = true;
-        else
-          x.append(",\n ");
-
-        x.append( "\"" + (longURI ? termp : shortUrl(termp)) +"\"" );
-      }
-      x.append("]");
-    }
-    else
-    {
-      x.append("<table><tr><th>ID</th></tr>");
-
-      for ( String termp : terms )
-        x.append("<tr><td>" + (longURI ? termp : shortUrl(termp)) +"</td></tr>");
-
-      x.append("</table>");
-    }
+        boolean isLabels = op.equals("labels");
 
-    return x.toString();
-  }
+        ArrayList<String> terms = (isLabels ? getLabels( req, o ) : SearchByLabel( req, o, verbose ));
 
-  public void initOwlkb( String [] args )
-  {
-    df = OWLManager.getOWLDataFactory();
-    rdfsLabel = df.getRDFSLabel();
+        if ( terms == null || terms.isEmpty() )
+          response = (isLabels ? "No class by that shortform." : "No class with that label.");
+        else
+          response = computeResponse( terms, fJson, false, verbose && !isLabels );
+      }
+      else
+      if ( op.equals("autocomplete") )
+        response = computeAutocompleteResponse( req, args, r, o, ec, fJson, longURI );
+      else
+      if ( op.equals("fuzzysearch") )
+        response = computeFuzzysearchResponse( req, args, fJson, longURI );
+      else
+      if ( op.equals("fulltext") )
+        response = computeFulltextResponse( req, args, fJson, longURI );
+      else
+      if ( op.equals("issubclass") )
+        response = computeIssubclassResponse( req, r, o, ec, fJson );
+      else
+      if ( op.equals("lca") )
+        response = computeLcaResponse( req, o, ec, fJson );
+      else
+      if ( op.equals("similarity") )
+        response = computeSimilarityResponse( req, o, ec, fJson );
+      else
+      if ( op.equals("mostsimilar") )
+        response = computeMostsimilarResponse( req, args, o, ec, fJson, longURI );
+      else
+      if ( op.equals("addlabel") )
+        response = computeAddlabelResponse( o, iri, m, req, fJson );
+      else
+      if ( op.equals("rdfstore") )
+        response = computeRdfstoreResponse( o, iri, m, ec, r, req );
+      else
+      if ( op.equals("apinatomy") )
+        response = computeApinatomyResponse( o, iri, m, r, req );
+      else
+      if ( op.equals("generate-triples") )
+      {
+        if ( t.getRemoteAddress().getAddress().isLoopbackAddress() )
+          response = computeGenerateTriplesResponse( o, iri, m, r, req );
+        else
+          response = "{\"error\": \"Only requests originating from localhost can run generate-triples\"}";
+      }
+      else
+      if ( op.equals("shortestpath") )
+        response = computeShortestpathResponse( o, iri, m, r, req );
+      else
+      if ( op.equals("similar_molecules") )
+        response = computeSimilarMoleculesResponse( o, iri, m, r, ec, req );
+      else
+      if ( op.equals("subgraph") )
+        response = computeSubgraphResponse( o, iri, m, r, req, args );
+      else
+      try
+      {
+        OWLClassExpression exp;
+        String manchesterError = "";
 
-    parseCommandlineArguments(args);
-  }
+        if ( uclSyntax != null )
+        {
+          String lolsReply = queryURL( uclSyntax + URLEncode(req) );
 
-  public void parseCommandlineArguments( String [] args )
-  {
-    reasonerName = "elk";
+          if ( lolsReply == null )
+          {
+            exp = parseManchester( req, o, ec );
+            if ( exp == null )
+              manchesterError = "Could not connect to LOLS for UCL syntax parsing";
+          }
+          else
+          {
+            String error = naiveJsonParse( lolsReply, "Error" );
+            if ( error != null && !error.trim().equals("") )
+            {
+              manchesterError = error.trim();
+              exp = null;
+            }
+            else
+            {
+              String ambigs = naiveJsonParse( lolsReply, "Ambiguities", "\n  [", "\n  ]" );
+              if ( ambigs != null && !ambigs.trim().equals("") )
+              {
+                manchesterError = "{\n  \"Ambiguities\":\n  [\n    " + ambigs.trim() + "\n  ]\n}";
+                exp = null;
+              }
+              else
+              {
+                String uclToManchester = naiveJsonParse( lolsReply, "Result" );
+                if ( uclToManchester == null )
+                {
+                  manchesterError = lolsReply.trim();
+                  exp = null;
+                }
+                else
+                {
+                  exp = parseManchester( uclToManchester, o, ec );
+                  if ( exp == null )
+                  {
+                    String possibleError = naiveJsonParse( lolsReply, "Possible_error" );
+                    if ( possibleError != null )
+                      manchesterError = possibleError;
+                  }
+                }
+              }
+            }
+          }
+        }
+        else
+          exp = parseManchester( req, o, ec );
+
+        if ( exp == null )
+        {
+          if ( !manchesterError.equals("") )
+            response = manchesterError;
+          else
+            response = "Malformed Manchester query";
+
+          cacheable = false;
+        }
+        else
+        {
+          boolean viaReasoner = args.containsKey("reasoner");  // Bypass the taxonomy snapshot
+          HierarchyLimits limits = HierarchyLimits.parse( args );
+
+          if ( limits == null )
+          {
+            response = "depth and maxnodes must be numbers from 1 up";
+            cacheable = false;
+          }
+          else
+          if ( wantsStream( op, args ) )
+          {
+            /*
+             * computeQueryResponse runs the query once the read lock is released, so a slow
+             * client can't hold up the writer lane
+             */
+            t.setAttribute( STREAMED_QUERY, new StreamedQuery( op, exp, viaReasoner, limits ) );
+            response = null;
+          }
+          else
+          if ( isPageable( op ) && ( args.containsKey("limit") || args.containsKey("offset") ) )
+            response = computePagedResponse( op, exp, r, args, fJson, verbose, longURI, viaReasoner );
+          else
+          if ( op.equals("subterms")
+          ||   op.equals("siblings")
+          ||   op.equals("parents")
+          ||   op.equals("children")
+          ||   op.equals("eqterms")
+          ||   op.equals("instances")
+          ||   op.equals("terms") )
+          {
+            ArrayList<String> terms = null;
+
+            if ( op.equals("subterms") )
+              terms = getSubTerms(exp,r,false,false,verbose,viaReasoner);
+            else if ( op.equals("siblings") )
+              terms = getSiblings(exp,r,false,false,verbose,viaReasoner);
+            else if ( op.equals("parents") )
+              terms = getParents(exp,r,false,false,verbose,viaReasoner);
+            else if ( op.equals("children") )
+              terms = getChildren(exp,r,false,false,verbose,viaReasoner);
+            else if ( op.equals("eqterms") )
+              terms = addTerm(exp,r,m,o,iri,verbose );
+            else if ( op.equals("instances") )
+              terms = getInstances(exp,r,verbose);
+            else if ( op.equals("terms") )
+              terms = getTerms(exp,r,verbose,viaReasoner);
+
+            response = computeResponse( terms, fJson, longURI, verbose );
+          }
+          else if ( op.equals("subhierarchy") )
+          {
+            response = computeSubhierarchyResponse( exp, r, limits );
+          }
+          else if ( op.equals("count") )
+            response = computeCountResponse( req, exp, r, fJson, viaReasoner );
+          else if ( op.equals("test") )
+            response = computeDemoResponse( exp, r, m, o, iri, startTime, fJson, verbose );
+          else
+          {
+            response = "Unrecognized request";
+            cacheable = false;
+          }
+        }
+      }
+      catch(Exception e)
+      {
+        response = "There was an error getting the results.";
+        cacheable = false;
+      }
+
+      return new QueryResponse( response, cacheable );
+    }
+
+    /*
+     * Whether responses to the given op can be kept in the result cache.  These only depend on
+     * the request and the state of the ontology.
+     */
+    public boolean isCacheable( String op )
+    {
+      return op.equals("subterms")
+      ||     op.equals("siblings")
+      ||     op.equals("parents")
+      ||     op.equals("children")
+      ||     op.equals("instances")
+      ||     op.equals("terms")
+      ||     op.equals("subhierarchy")
+      ||     op.equals("count");
+    }
+
+    /*
+     * Requests differing only in whitespace share a cache entry
+     */
+    public String resultCacheKey( String op, String req, boolean fJson, boolean verbose, boolean longURI )
+    {
+      String normalized = req.trim().replaceAll("\\s+", " ");
+
+      return op + "\n" + (fJson ? "j" : "-") + (verbose ? "v" : "-") + (longURI ? "l" : "-") + "\n" + normalized;
+    }
+
+    /*
+     * Requests with different paging or subhierarchy limits are cached separately
+     */
+    public String argsKey( Map<String,String> args )
+    {
+      StringBuilder sb = new StringBuilder();
+
+      for ( String arg : new String[] { "offset", "limit", "depth", "maxnodes", "ref" } )
+      {
+        if ( args.containsKey( arg ) )
+          sb.append( "\n" ).append( arg ).append( "=" ).append( args.get( arg ) );
+      }
+
+      return sb.toString();
+    }
+
+    /*
+     * Weak ETag for a response: the same request against the same ontology generation (in the
+     * same run of the server) gets the same ETag, whatever the content-encoding
+     */
+    public String computeETag( String op, String req, Map<String,String> args, boolean fJson, boolean verbose, boolean longURI, long generation )
+    {
+      String key = resultCacheKey( op, req, fJson, verbose, longURI ) + "\n" + new TreeMap<String,String>( args );
+
+      return "W/\"" + bootId + "-" + generation + "-" + Integer.toHexString( key.hashCode() ) + "\"";
+    }
+
+    /*
+     * Whether the client's If-None-Match lists the given ETag (using weak comparison)
+     */
+    public boolean etagMatches( Headers requestHeaders, String etag )
+    {
+      List<String> ifNoneMatch = requestHeaders.get("If-None-Match");
+
+      if ( ifNoneMatch == null )
+        return false;
+
+      String opaque = etag.substring(2);
+
+      for ( String value : ifNoneMatch )
+      {
+        for ( String candidate : value.split(",") )
+        {
+          candidate = candidate.trim();
+
+          if ( candidate.equals("*") )
+            return true;
+
+          if ( candidate.startsWith("W/") )
+            candidate = candidate.substring(2);
+
+          if ( candidate.equals( opaque ) )
+            return true;
+        }
+      }
+
+      return false;
+    }
+
+    /*
+     * Whether the client asked for results to be streamed (?stream, or ?stream=ndjson),
+     * and the given op can stream them.  JSONP responses and single pages (?offset, ?limit)
+     * are never streamed.
+     */
+    public boolean wantsStream( String op, Map<String,String> args )
+    {
+      if ( !args.containsKey("stream") || args.containsKey("callback") || args.containsKey("limit") || args.containsKey("offset") )
+        return false;
+
+      return op.equals("subterms")
+      ||     op.equals("siblings")
+      ||     op.equals("parents")
+      ||     op.equals("children")
+      ||     op.equals("instances")
+      ||     op.equals("terms")
+      ||     op.equals("subhierarchy");
+    }
+
+    /*
+     * Whether the given op can return its results a page at a time (see computePagedResponse)
+     */
+    public boolean isPageable( String op )
+    {
+      return op.equals("subterms") || op.equals("terms") || op.equals("instances");
+    }
+
+    /*
+     * Whether the given op takes free text rather than a class expression
+     */
+    public boolean isTextSearch( String op )
+    {
+      return op.equals("autocomplete") || op.equals("fuzzysearch") || op.equals("fulltext");
+    }
+
+    /*
+     * Whether requests for the given op can add axioms to the ontology
+     */
+    public boolean isMutator( String op )
+    {
+      return op.equals("eqterms") || op.equals("test") || op.equals("addlabel");
+    }
+  }
+
+  public boolean checkForNonEL( String req, HttpExchange t ) throws java.io.IOException
+  {
+    String error = nonELError( req );
+
+    if ( error == null )
+      return false;
+
+    sendResponse( t, error, false );
+    return true;
+  }
+
+  /*
+   * The reason a query is forbidden for not being EL, or null if it isn't forbidden
+   */
+  public static String nonELError( String req )
+  {
+    /*
+     * To do: improve this function, which is currently just a bandaid
+     */
+    try
+    {
+      String lower = req.toLowerCase();
+
+      if ( lower.contains(" or ") )
+        return "Disjunction ('or') is forbidden because it would make the ontology non-EL.";
+
+      if ( lower.contains(" not ") || lower.substring(0,4).equals("not ") )
+        return "Negation ('not') is forbidden because it would make the ontology non-EL.";
+
+      return null;
+    }
+    catch ( Exception e )
+    {
+      return null;
+    }
+  }
+
+  public void sendResponse( HttpExchange t, String response, boolean fJson ) throws java.io.IOException
+  {
+    Headers h = t.getResponseHeaders();
+    addCacheHeaders( h );
+
+    if ( fJson )
+      h.add("Content-Type", "application/json");
+
+    byte[] raw = response.getBytes( java.nio.charset.StandardCharsets.UTF_8 );
+    String encoding = null;
+
+    if ( compressMinBytes >= 0 && raw.length >= compressMinBytes )
+    {
+      h.add("Vary", "Accept-Encoding");
+      encoding = chooseContentEncoding( t.getRequestHeaders() );
+    }
+
+    java.io.OutputStream os = t.getResponseBody();
+
+    if ( encoding == null )
+    {
+      t.sendResponseHeaders(200,raw.length);
+      os.write(raw);
+    }
+    else
+    {
+      ResponseEncoder encoder = responseEncoders.poll();
+
+      if ( encoder == null )
+        encoder = new ResponseEncoder();
+
+      try
+      {
+        encoder.compress( raw, encoding.equals("gzip") );
+
+        h.add("Content-Encoding", encoding);
+        t.sendResponseHeaders(200,encoder.size());
+        os.write(encoder.buffer(), 0, encoder.size());
+      }
+      finally
+      {
+        encoder.release();
+
+        if ( !responseEncoders.offer( encoder ) )
+          encoder.end();
+      }
+    }
+
+    os.close();
+
+    logDebug( "Response transmitted.");
+  }
+
+  /*
+   * Responses with an ETag may be stored, but must be revalidated before reuse.
+   * Everything else (e.g. responses from endpoints that change the ontology) must not be stored.
+   */
+  public void addCacheHeaders( Headers h )
+  {
+    if ( h.containsKey("ETag") )
+      h.add("Cache-Control", "no-cache");
+    else
+    {
+      h.add("Cache-Control", "no-cache, no-store, must-revalidate");
+      h.add("Pragma", "no-cache");
+      h.add("Expires", "0");
+    }
+  }
+
+  public void sendNotModified( HttpExchange t, String etag ) throws java.io.IOException
+  {
+    Headers h = t.getResponseHeaders();
+    h.set("ETag", etag);
+    addCacheHeaders( h );
+
+    t.sendResponseHeaders(304, -1);
+    t.close();
+
+    logDebug( "Response not modified since client's copy.");
+  }
+
+  /*
+   * Exchange attribute under which computeDispatchedResponse leaves a query to be streamed
+   */
+  static final String STREAMED_QUERY = "owlkb.streamedQuery";
+
+  /*
+   * A parsed query whose results are to be streamed
+   */
+  static class StreamedQuery
+  {
+    String srvType;
+    OWLClassExpression exp;
+    boolean viaReasoner;
+    HierarchyLimits limits;
+
+    public StreamedQuery( String srvType, OWLClassExpression exp, boolean viaReasoner, HierarchyLimits limits )
+    {
+      this.srvType = srvType;
+      this.exp = exp;
+      this.viaReasoner = viaReasoner;
+      this.limits = limits;
+    }
+  }
+
+  /*
+   * A computed response, and whether it may go in the result cache (errors such as an
+   * unparseable expression may not)
+   */
+  static class QueryResponse
+  {
+    String response;
+    boolean cacheable;
+
+    public QueryResponse( String response, boolean cacheable )
+    {
+      this.response = response;
+      this.cacheable = cacheable;
+    }
+  }
+
+  /*
+   * Stream the results of a class-expression query straight to the client, with chunked
+   * transfer encoding, instead of first building the whole response in memory.  The first
+   * results reach the client as soon as they are resolved.  With ndjson, each result is sent
+   * as one line of JSON.
+   *
+   * This runs without kbLock.  Named classes are answered from the taxonomy snapshot, which
+   * is never changed in place, and the entity dictionary and label index can be read while
+   * they grow.  Queries that need the reasoner take the read lock just for the reasoner call
+   * (see subClassesOf etc.), so the lock is never held while writing to the client.
+   */
+  public void streamResponse( HttpExchange t, StreamedQuery q, OWLReasoner r, boolean fJson, boolean verbose, boolean longURI, boolean ndjson ) throws java.io.IOException
+  {
+    String srvType = q.srvType;
+    Headers h = t.getResponseHeaders();
+    addCacheHeaders( h );
+
+    if ( ndjson )
+      h.add("Content-Type", "application/x-ndjson");
+    else if ( fJson || srvType.equals("subhierarchy") )
+      h.add("Content-Type", "application/json");
+
+    String encoding = ( compressMinBytes >= 0 ) ? chooseContentEncoding( t.getRequestHeaders() ) : null;
+
+    if ( encoding != null )
+    {
+      h.add("Content-Encoding", encoding);
+      h.add("Vary", "Accept-Encoding");
+    }
+
+    t.sendResponseHeaders(200, 0);
+
+    java.io.OutputStream os = t.getResponseBody();
+    Deflater deflater = null;  // Not ended by DeflaterOutputStream, since we supply it
+
+    if ( "gzip".equals(encoding) )
+      os = new GZIPOutputStream( os, 8192, true );
+    else if ( "deflate".equals(encoding) )
+    {
+      deflater = new Deflater( Deflater.BEST_SPEED );
+      os = new DeflaterOutputStream( os, deflater, 8192, true );
+    }
+
+    java.io.Writer w = new java.io.BufferedWriter( new java.io.OutputStreamWriter( os, java.nio.charset.StandardCharsets.UTF_8 ), 8192 );
+
+    try
+    {
+      if ( srvType.equals("subhierarchy") )
+      {
+        w.write( "{\n" );
+        appendSubhierarchy( w, q.exp, r, 1, q.limits );
+        w.write( "\n}" );
+      }
+      else
+      {
+        TermStream stream = new TermStream( w, shortformProvider, fJson || ndjson, verbose, longURI, ndjson );
+
+        stream.begin();
+
+        if ( srvType.equals("subterms") )
+          getSubTerms(q.exp,r,false,false,verbose,q.viaReasoner,stream);
+        else if ( srvType.equals("siblings") )
+          getSiblings(q.exp,r,false,false,verbose,q.viaReasoner,stream);
+        else if ( srvType.equals("parents") )
+          getParents(q.exp,r,false,false,verbose,q.viaReasoner,stream);
+        else if ( srvType.equals("children") )
+          getChildren(q.exp,r,false,false,verbose,q.viaReasoner,stream);
+        else if ( srvType.equals("instances") )
+          getInstances(q.exp,r,verbose,stream);
+        else if ( srvType.equals("terms") )
+          getTerms(q.exp,r,verbose,q.viaReasoner,stream);
+
+        stream.end();
+      }
+    }
+    catch( java.io.UncheckedIOException e )
+    {
+      throw e.getCause();
+    }
+    catch( RuntimeException e )
+    {
+      /*
+       * The headers are already sent, so all that can be done is to end the body early
+       */
+      logDebug( "Error while streaming the response: " + e );
+    }
+    finally
+    {
+      try
+      {
+        w.close();
+      }
+      finally
+      {
+        if ( deflater != null )
+          deflater.end();
+      }
+    }
+
+    logDebug( "Response streamed.");
+  }
+
+  /*
+   * Receives the results of a hierarchy query one at a time, either into a list (TermList) or
+   * straight to a streamed response (TermStream)
+   */
+  interface TermSink
+  {
+    void add( String term );
+  }
+
+  static class TermList implements TermSink
+  {
+    ArrayList<String> terms = new ArrayList<String>();
+
+    public void add( String term )
+    {
+      terms.add( term );
+    }
+  }
+
+  /*
+   * Writes each term straight to a streamed response, in the layout computeResponse would
+   * have used (or as one JSON value per line, for NDJSON)
+   */
+  static class TermStream implements TermSink
+  {
+    java.io.Writer w;
+    EntityDictionary dictionary;
+    boolean fJson, verbose, longURI, ndjson;
+    int count;
+
+    public TermStream( java.io.Writer w, EntityDictionary dictionary, boolean fJson, boolean verbose, boolean longURI, boolean ndjson )
+    {
+      this.w = w;
+      this.dictionary = dictionary;
+      this.fJson = fJson;
+      this.verbose = verbose;
+      this.longURI = longURI;
+      this.ndjson = ndjson;
+    }
+
+    public void begin() throws java.io.IOException
+    {
+      if ( ndjson )
+        return;
+
+      if ( verbose )
+        w.write( "{\n \"results\":\n [\n  " );
+      else if ( fJson )
+        w.write( "[\n " );
+      else
+        w.write( "<table><tr><th>ID</th></tr>" );
+    }
+
+    public void add( String term )
+    {
+      try
+      {
+        if ( verbose )
+        {
+          if ( ndjson )
+            w.write( term.replace( "\n", "" ) );
+          else
+          {
+            if ( count > 0 )
+              w.write( ",\n  " );
+
+            w.write( term );
+          }
+        }
+        else
+        {
+          String id = longURI ? term : dictionary.shortUrlOf(term);
+
+          if ( ndjson )
+            w.write( "\"" + id + "\"" );
+          else if ( fJson )
+          {
+            if ( count > 0 )
+              w.write( ",\n " );
+
+            w.write( "\"" + id + "\"" );
+          }
+          else
+            w.write( "<tr><td>" + id + "</td></tr>" );
+        }
+
+        if ( ndjson )
+          w.write( "\n" );
+
+        /*
+         * Get the first result to the client right away
+         */
+        if ( ++count == 1 )
+          w.flush();
+      }
+      catch( java.io.IOException e )
+      {
+        throw new java.io.UncheckedIOException( e );
+      }
+    }
+
+    public void end() throws java.io.IOException
+    {
+      if ( ndjson )
+        return;
+
+      if ( verbose )
+        w.write( "\n ]\n}" );
+      else if ( fJson )
+        w.write( "]" );
+      else
+        w.write( "</table>" );
+    }
+  }
+
+  /*
+   * Pick gzip or deflate (preferring gzip) if the client's Accept-Encoding allows either.
+   * Returns null if the response should be sent uncompressed.
+   */
+  public static String chooseContentEncoding( Headers requestHeaders )
+  {
+    List<String> acceptEncodings = requestHeaders.get("Accept-Encoding");
+
+    if ( acceptEncodings == null )
+      return null;
+
+    boolean gzip = false, deflate = false;
+
+    for ( String acceptEncoding : acceptEncodings )
+    {
+      for ( String coding : acceptEncoding.split(",") )
+      {
+        String[] parts = coding.trim().toLowerCase().split(";");
+        boolean refused = false;
+
+        for ( int i = 1; i < parts.length; i++ )
+        {
+          String param = parts[i].replace(" ", "");
+
+          if ( param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?") )
+            refused = true;
+        }
+
+        if ( refused )
+          continue;
+
+        if ( parts[0].equals("gzip") || parts[0].equals("x-gzip") )
+          gzip = true;
+        else if ( parts[0].equals("deflate") )
+          deflate = true;
+      }
+    }
+
+    if ( gzip )
+      return "gzip";
+
+    if ( deflate )
+      return "deflate";
+
+    return null;
+  }
+
+  /*
+   * Buffer and compressor for outgoing responses.  Each response is compressed once, into a
+   * buffer that a later response reuses; idle encoders wait in a bounded pool
+   * (responseEncoders), and any beyond that are ended, so e.g. one virtual thread per request
+   * doesn't mean one Deflater per request.  The compressor produces raw deflate data, and the
+   * gzip or zlib framing is written here.
+   */
+  static class ResponseEncoder
+  {
+    static final int MAX_RETAINED_BYTES = 1 << 20;
+
+    byte[] buf = new byte[8192];
+    int count;
+    Deflater deflater = new Deflater( Deflater.BEST_SPEED, true );
+
+    public byte[] buffer()
+    {
+      return buf;
+    }
+
+    public int size()
+    {
+      return count;
+    }
+
+    public void compress( byte[] raw, boolean gzip )
+    {
+      count = 0;
+
+      if ( gzip )
+        append( new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff } );
+      else
+        append( new byte[] { 0x78, 0x01 } );
+
+      deflater.reset();
+      deflater.setInput( raw );
+      deflater.finish();
+
+      while ( !deflater.finished() )
+      {
+        if ( count == buf.length )
+          buf = Arrays.copyOf( buf, buf.length * 2 );
+
+        count += deflater.deflate( buf, count, buf.length - count );
+      }
+
+      if ( gzip )
+      {
+        CRC32 crc = new CRC32();
+        crc.update( raw );
+        appendInt( (int) crc.getValue(), false );
+        appendInt( raw.length, false );
+      }
+      else
+      {
+        Adler32 adler = new Adler32();
+        adler.update( raw );
+        appendInt( (int) adler.getValue(), true );
+      }
+    }
+
+    /*
+     * Don't let one huge response pin a huge buffer in the pool forever
+     */
+    public void release()
+    {
+      if ( buf.length > MAX_RETAINED_BYTES )
+        buf = new byte[8192];
+
+      count = 0;
+    }
+
+    /*
+     * Free the compressor's native memory, for an encoder that won't be reused
+     */
+    public void end()
+    {
+      deflater.end();
+    }
+
+    void append( byte[] bytes )
+    {
+      if ( count + bytes.length > buf.length )
+        buf = Arrays.copyOf( buf, Math.max( buf.length * 2, count + bytes.length ) );
+
+      System.arraycopy( bytes, 0, buf, count, bytes.length );
+      count += bytes.length;
+    }
+
+    void appendInt( int x, boolean bigEndian )
+    {
+      if ( bigEndian )
+        append( new byte[] { (byte)(x >>> 24), (byte)(x >>> 16), (byte)(x >>> 8), (byte) x } );
+      else
+        append( new byte[] { (byte) x, (byte)(x >>> 8), (byte)(x >>> 16), (byte)(x >>> 24) } );
+    }
+  }
+
+  /*
+   * ELK answers queries about named classes straight from its precomputed taxonomy, so such
+   * queries can safely run in parallel.  ELK answers queries about anonymous class expressions by
+   * temporarily changing its internal state, and HermiT is not thread-safe at all, so those
+   * queries are run one at a time.  The query methods below take the read lock themselves
+   * (it's reentrant), so that streamed responses can call them without holding it.  They also
+   * take reasonerLock's read lock, since the reasoner is reclassified after a change without
+   * kbLock's write lock (see addTerm), so queries the snapshot can answer needn't wait for it.
+   */
+  public boolean isConcurrentQuery( OWLClassExpression exp )
+  {
+    return reasonerName.equals("elk") && !exp.isAnonymous();
+  }
+
+  public NodeSet<OWLClass> subClassesOf( OWLReasoner r, OWLClassExpression exp, boolean direct )
+  {
+    Lock lock = kbLock.readLock(), reasoning = reasonerLock.readLock();
+    lock.lock();
+    reasoning.lock();
+
+    try
+    {
+      if ( isConcurrentQuery( exp ) )
+        return r.getSubClasses( exp, direct );
+
+      synchronized( r )
+      {
+        return r.getSubClasses( exp, direct );
+      }
+    }
+    finally
+    {
+      reasoning.unlock();
+      lock.unlock();
+    }
+  }
+
+  public NodeSet<OWLClass> superClassesOf( OWLReasoner r, OWLClassExpression exp, boolean direct )
+  {
+    Lock lock = kbLock.readLock(), reasoning = reasonerLock.readLock();
+    lock.lock();
+    reasoning.lock();
+
+    try
+    {
+      if ( isConcurrentQuery( exp ) )
+        return r.getSuperClasses( exp, direct );
+
+      synchronized( r )
+      {
+        return r.getSuperClasses( exp, direct );
+      }
+    }
+    finally
+    {
+      reasoning.unlock();
+      lock.unlock();
+    }
+  }
+
+  public Node<OWLClass> equivalentClassesOf( OWLReasoner r, OWLClassExpression exp )
+  {
+    Lock lock = kbLock.readLock(), reasoning = reasonerLock.readLock();
+    lock.lock();
+    reasoning.lock();
+
+    try
+    {
+      if ( isConcurrentQuery( exp ) )
+        return r.getEquivalentClasses( exp );
+
+      synchronized( r )
+      {
+        return r.getEquivalentClasses( exp );
+      }
+    }
+    finally
+    {
+      reasoning.unlock();
+      lock.unlock();
+    }
+  }
+
+  public NodeSet<OWLNamedIndividual> instancesOf( OWLReasoner r, OWLClassExpression exp, boolean direct )
+  {
+    Lock lock = kbLock.readLock(), reasoning = reasonerLock.readLock();
+    lock.lock();
+    reasoning.lock();
+
+    try
+    {
+      if ( isConcurrentQuery( exp ) )
+        return r.getInstances( exp, direct );
+
+      synchronized( r )
+      {
+        return r.getInstances( exp, direct );
+      }
+    }
+    finally
+    {
+      reasoning.unlock();
+      lock.unlock();
+    }
+  }
+
+  public boolean isEntailed( OWLReasoner r, OWLAxiom axiom )
+  {
+    Lock lock = kbLock.readLock(), reasoning = reasonerLock.readLock();
+    lock.lock();
+    reasoning.lock();
+
+    try
+    {
+      synchronized( r )
+      {
+        return r.isEntailed( axiom );
+      }
+    }
+    finally
+    {
+      reasoning.unlock();
+      lock.unlock();
+    }
+  }
+
+  /*
+   * LRU cache of query responses, bounded by the approximate number of bytes the cached
+   * strings occupy.  Each entry is tagged with the ontology generation it was computed
+   * against, and is discarded when looked up after the ontology has changed.
+   */
+  static class ResultCache
+  {
+    long maxBytes;
+    long bytes;
+    long hits, misses, evictions, invalidations;
+    LinkedHashMap<String,CachedResult> entries;
+
+    public ResultCache( long maxBytes )
+    {
+      this.maxBytes = maxBytes;
+      this.entries = new LinkedHashMap<String,CachedResult>( 256, 0.75f, true );
+    }
+
+    public synchronized String get( String key, long generation )
+    {
+      CachedResult cached = entries.get( key );
+
+      if ( cached == null )
+      {
+        misses++;
+        return null;
+      }
+
+      if ( cached.generation != generation )
+      {
+        entries.remove( key );
+        bytes -= cached.size;
+        invalidations++;
+        misses++;
+        return null;
+      }
+
+      hits++;
+      return cached.response;
+    }
+
+    public synchronized void put( String key, String response, long generation )
+    {
+      long size = sizeOf( key, response );
+
+      if ( size > maxBytes / 4 )
+        return;
+
+      CachedResult old = entries.put( key, new CachedResult( response, generation, size ) );
+
+      if ( old != null )
+        bytes -= old.size;
+
+      bytes += size;
+
+      Iterator<CachedResult> it = entries.values().iterator();
+
+      while ( bytes > maxBytes && it.hasNext() )
+      {
+        bytes -= it.next().size;
+        it.remove();
+        evictions++;
+      }
+    }
+
+    public synchronized String toJson()
+    {
+      return "{\n    \"entries\": " + entries.size() +
+             ",\n    \"bytes\": " + bytes +
+             ",\n    \"maxBytes\": " + maxBytes +
+             ",\n    \"hits\": " + hits +
+             ",\n    \"misses\": " + misses +
+             ",\n    \"evictions\": " + evictions +
+             ",\n    \"invalidations\": " + invalidations + "\n  }";
+    }
+
+    /*
+     * Two bytes per char, plus a rough allowance for the entry and string headers
+     */
+    static long sizeOf( String key, String response )
+    {
+      return 2L * ( key.length() + response.length() ) + 96;
+    }
+  }
+
+  static class CachedResult
+  {
+    public String response;
+    public long generation;
+    public long size;
+
+    public CachedResult( String response, long generation, long size )
+    {
+      this.response = response;
+      this.generation = generation;
+      this.size = size;
+    }
+  }
+
+  /*
+   * Bounded cache from Manchester strings to parsed class expressions.  Strings that failed to
+   * parse are remembered too (with a null expression), but only for the ontology generation in
+   * which they failed, since a later change might add the class they refer to.  When full, an
+   * arbitrary portion of the entries is dropped, which keeps the cache lock-free on lookups.
+   */
+  static class ExpressionCache
+  {
+    int maxEntries;
+    ConcurrentHashMap<String,ParsedExpression> entries;
+    AtomicLong hits, negativeHits, misses;
+
+    public ExpressionCache( int maxEntries )
+    {
+      this.maxEntries = maxEntries;
+      this.entries = new ConcurrentHashMap<String,ParsedExpression>();
+      this.hits = new AtomicLong();
+      this.negativeHits = new AtomicLong();
+      this.misses = new AtomicLong();
+    }
+
+    public ParsedExpression get( String manchester, long generation )
+    {
+      ParsedExpression cached = entries.get( manchester );
+
+      if ( cached != null )
+      {
+        if ( cached.exp != null )
+        {
+          hits.incrementAndGet();
+          return cached;
+        }
+
+        if ( cached.generation == generation )
+        {
+          negativeHits.incrementAndGet();
+          return cached;
+        }
+      }
+
+      misses.incrementAndGet();
+      return null;
+    }
+
+    public void put( String manchester, OWLClassExpression exp, long generation )
+    {
+      if ( maxEntries == 0 )
+        return;
+
+      if ( entries.size() >= maxEntries )
+      {
+        int toDrop = Math.max( 1, maxEntries / 4 );
+        Iterator<String> it = entries.keySet().iterator();
+
+        while ( toDrop-- > 0 && it.hasNext() )
+        {
+          it.next();
+          it.remove();
+        }
+      }
+
+      entries.put( manchester, new ParsedExpression( exp, generation ) );
+    }
+
+    public String toJson()
+    {
+      return "{\n    \"entries\": " + entries.size() +
+             ",\n    \"maxEntries\": " + maxEntries +
+             ",\n    \"hits\": " + hits.get() +
+             ",\n    \"negativeHits\": " + negativeHits.get() +
+             ",\n    \"misses\": " + misses.get() + "\n  }";
+    }
+  }
+
+  static class ParsedExpression
+  {
+    public OWLClassExpression exp;  // null if the string was malformed
+    public long generation;
+
+    public ParsedExpression( OWLClassExpression exp, long generation )
+    {
+      this.exp = exp;
+      this.generation = generation;
+    }
+  }
+
+  public String computeStatsResponse()
+  {
+    return "{\n  \"ontologyGeneration\": " + ontologyGeneration.get() +
+           ",\n  \"entities\": " + shortformProvider.size() +
+           ",\n  \"taxonomy\": " + computeTaxonomyStats() +
+           ",\n  \"resultCache\": " + resultCache.toJson() +
+           ",\n  \"parseCache\": " + expressionCache.toJson() +
+           ",\n  \"log\": {\n    \"queued\": " + logger.ring.size() + ",\n    \"dropped\": " + logger.dropped.get() + "\n  }\n}";
+  }
+
+  /*
+   * Size of the taxonomy snapshot, and how hierarchy queries have been answered: count and
+   * average lookup time (excluding rendering) from the snapshot and from the reasoner
+   */
+  public String computeTaxonomyStats()
+  {
+    Taxonomy tx = taxonomy;
+    long sq = snapshotQueries.get(), rq = reasonerQueries.get();
+
+    return "{\n    \"classes\": " + (tx == null ? 0 : tx.nodeCount()) +
+           ",\n    \"links\": " + (tx == null ? 0 : tx.edgeCount()) +
+           ",\n    \"bytes\": " + (tx == null ? 0 : tx.bytes()) +
+           ",\n    \"buildMs\": " + (tx == null ? 0 : tx.buildMillis) +
+           ",\n    \"subsumptionChecks\": " + (tx == null ? 0 : tx.subsumptionChecks.get()) +
+           ",\n    \"subsumptionSearches\": " + (tx == null ? 0 : tx.subsumptionSearches.get()) +
+           ",\n    \"snapshotQueries\": " + sq +
+           ",\n    \"snapshotAvgMicros\": " + (sq == 0 ? 0 : snapshotNanos.get() / sq / 1000.0) +
+           ",\n    \"reasonerQueries\": " + rq +
+           ",\n    \"reasonerAvgMicros\": " + (rq == 0 ? 0 : reasonerNanos.get() / rq / 1000.0) +
+           "\n  }";
+  }
+
+  private ArrayList<String> getSubTerms(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner )
+  {
+    TermList idList = new TermList();
+    getSubTerms( exp, r, longURI, direct, verbose, viaReasoner, idList );
+    return idList.terms;
+  }
+
+  /*
+   * The hierarchy queries below answer named classes from the taxonomy snapshot, unless
+   * viaReasoner is set (or the class isn't in the snapshot), in which case they ask the reasoner
+   */
+  private void getSubTerms(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner, TermSink idList )
+  {
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node != -1 )
+    {
+      int[] nodes = direct ? tx.children( node ) : tx.descendants( node );
+      countHierarchyQuery( true, start );
+
+      for ( int n : nodes )
+        idList.add( termOf( tx.representative( n ), longURI, verbose ) );
+
+      return;
+    }
+
+    NodeSet<OWLClass> subClasses = subClassesOf( r, exp, direct );
+    countHierarchyQuery( false, start );
+
+    for ( Node<OWLClass> owlClassNode : subClasses )
+      idList.add( termOf( owlClassNode.getRepresentativeElement(), longURI, verbose ) );
+  }
+
+  private ArrayList<String> getParents(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner )
+  {
+    TermList idList = new TermList();
+    getParents( exp, r, longURI, direct, verbose, viaReasoner, idList );
+    return idList.terms;
+  }
+
+  private void getParents(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner, TermSink idList )
+  {
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node != -1 )
+    {
+      int[] nodes = tx.parents( node );
+      countHierarchyQuery( true, start );
+
+      for ( int n : nodes )
+        idList.add( termOf( tx.representative( n ), longURI, verbose ) );
+
+      return;
+    }
+
+    Set<Node<OWLClass>> parentNodes = superClassesOf( r, exp, true ).getNodes();
+    countHierarchyQuery( false, start );
+
+    for ( Node<OWLClass> n : parentNodes )
+      idList.add( termOf( n.getRepresentativeElement(), longURI, verbose ) );
+  }
+
+  private ArrayList<String> getChildren(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner )
+  {
+    TermList idList = new TermList();
+    getChildren( exp, r, longURI, direct, verbose, viaReasoner, idList );
+    return idList.terms;
+  }
+
+  private void getChildren(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner, TermSink idList )
+  {
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node != -1 )
+    {
+      int[] nodes = tx.children( node );
+      countHierarchyQuery( true, start );
+
+      for ( int n : nodes )
+        idList.add( termOf( tx.representative( n ), longURI, verbose ) );
+
+      return;
+    }
+
+    Set<Node<OWLClass>> childNodes = subClassesOf( r, exp, true ).getNodes();
+    countHierarchyQuery( false, start );
+
+    for ( Node<OWLClass> n : childNodes )
+      idList.add( termOf( n.getRepresentativeElement(), longURI, verbose ) );
+  }
+
+  private ArrayList<String> getSiblings(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner )
+  {
+    TermList idList = new TermList();
+    getSiblings( exp, r, longURI, direct, verbose, viaReasoner, idList );
+    return idList.terms;
+  }
+
+  private void getSiblings(OWLClassExpression exp, OWLReasoner r, boolean longURI, boolean direct, boolean verbose, boolean viaReasoner, TermSink idList )
+  {
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    /*
+     * From the snapshot: each sibling node comes paired with the parent it was first found under
+     */
+    if ( node != -1 )
+    {
+      int[] pairs = tx.siblings( node );
+      countHierarchyQuery( true, start );
+
+      OWLClass parent = null;
+      String parentLabel = null;
+      int parentNode = -1;
+
+      for ( int i = 0; i < pairs.length; i += 2 )
+      {
+        if ( verbose && pairs[i+1] != parentNode )
+        {
+          parentNode = pairs[i+1];
+          parent = tx.representative( parentNode ).asOWLClass();
+          parentLabel = labelByClass( parent );
+        }
+
+        for ( int j = tx.memberStart[pairs[i]]; j < tx.memberStart[pairs[i]+1]; j++ )
+          idList.add( siblingTerm( shortformProvider.entity( tx.members[j] ).asOWLClass(), parent, parentLabel, verbose ) );
+      }
+
+      return;
+    }
+
+    Set<Node<OWLClass>> parentNodes = superClassesOf( r, exp, true ).getNodes();
+    HashSet<OWLClass> sibs = new HashSet<OWLClass>();
+
+    for ( Node<OWLClass> pnode : parentNodes )
+    {
+      OWLClass parent = pnode.getRepresentativeElement();
+      String parentLabel = verbose ? labelByClass( parent ) : null;
+
+      for ( OWLClass c : subClassesOf( r, parent, true ).getFlattened() )
+      {
+        if ( sibs.add( c ) )
+          idList.add( siblingTerm( c, parent, parentLabel, verbose ) );
+      }
+    }
+
+    countHierarchyQuery( false, start );
+  }
+
+  private String siblingTerm( OWLClass c, OWLClass parent, String parentLabel, boolean verbose )
+  {
+    String sibID = shortformProvider.shortUrlOf( c );
+
+    if ( !verbose )
+      return sibID;
+
+    String label = labelByClass( c );
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n   \"sibling\":\"" ).append( sibID );
+    sb.append( "\",\n   \"label\":\"" ).append( label == null ? "null" : escapeJSON( label ) );
+    sb.append( "\",\n   \"parent\":\"" ).append( shortformProvider.shortUrlOf( parent ) );
+    sb.append( "\",\n   \"parent_label\":\"" ).append( parentLabel == null ? "null" : escapeJSON( parentLabel ) );
+    sb.append( "\"\n}" );
+
+    return sb.toString();
+  }
+
+  /*
+   * Count a hierarchy query and its lookup time, by whether the snapshot or the reasoner answered it
+   */
+  public void countHierarchyQuery( boolean fromSnapshot, long start )
+  {
+    long nanos = System.nanoTime() - start;
+
+    if ( fromSnapshot )
+    {
+      snapshotQueries.incrementAndGet();
+      snapshotNanos.addAndGet( nanos );
+    }
+    else
+    {
+      reasonerQueries.incrementAndGet();
+      reasonerNanos.addAndGet( nanos );
+    }
+  }
+
+  private ArrayList<String> getInstances(OWLClassExpression exp, OWLReasoner r, boolean verbose)
+  {
+    TermList idList = new TermList();
+    getInstances( exp, r, verbose, idList );
+    return idList.terms;
+  }
+
+  private void getInstances(OWLClassExpression exp, OWLReasoner r, boolean verbose, TermSink idList)
+  {
+    NodeSet<OWLNamedIndividual> inst = instancesOf( r, exp, false );
+
+    for (Node<OWLNamedIndividual> ind : inst)
+      idList.add( termOf( ind.getRepresentativeElement(), false, verbose ) );
+  }
+
+  private ArrayList<String> getEquivalentTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose)
+  {
+    ArrayList<String> idList = new ArrayList<String>();
+    Node<OWLClass> equivalentClasses = equivalentClassesOf( r, exp );
+
+    for ( OWLClass c : equivalentClasses.getEntities() )
+      objToTermlist( c, idList, false, verbose );
+
+    return idList;
+  }
+
+  public String labelByClass(OWLEntity c)
+  {
+    return labelIndex.primaryLabel( c.getIRI() );
+  }
+
+  public ArrayList<String> getLabels(String shortform, OWLOntology o )
+  {
+    OWLEntity e = shortformProvider.getEntity(shortform);
+
+    if ( e == null )
+      return null;
+
+    ArrayList<String> idList = new ArrayList<String>();
+
+    String[] labels = labelIndex.labels( e.getIRI() );
+
+    if ( labels == null )
+      idList.add( "(Unlabeled class)" );   //To do: create "advanced commandline options" one of which chooses Queen's vs. American English
+    else
+    for ( String label : labels )
+      idList.add( label );
+
+    return idList;
+  }
+
+  public ArrayList<String> SearchByLabel(String label, OWLOntology o, boolean verbose )
+  {
+    Set<IRI> matches = labelIndex.searchExact( label );
+
+    /*
+     * If nothing has exactly that label, try ignoring case, whitespace and punctuation
+     */
+    if ( matches.isEmpty() )
+      matches = labelIndex.searchNormalized( label );
+
+    Set<OWLEntity> ents = new LinkedHashSet<OWLEntity>();
+
+    for ( IRI match : matches )
+      ents.addAll( o.getEntitiesInSignature( match, true ) );
+
+    if ( ents.isEmpty() )
+      return null;
+
+    ArrayList<String> idList = new ArrayList<String>();
+
+    for ( OWLEntity e : ents )
+    {
+      if ( e.isOWLClass() && !e.asOWLClass().isAnonymous() )
+        objToTermlist( e, idList, false, verbose );
+    }
+
+    return idList;
+  }
+
+  public ArrayList<String> getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose, boolean viaReasoner)
+  {
+    TermList idList = new TermList();
+    getTerms( exp, r, verbose, viaReasoner, idList );
+    return idList.terms;
+  }
+
+  public void getTerms(OWLClassExpression exp, OWLReasoner r, boolean verbose, boolean viaReasoner, TermSink idList)
+  {
+    for ( String term : getEquivalentTerms(exp,r,verbose) )
+      idList.add( term );
+
+    getSubTerms(exp,r,false,false,verbose,viaReasoner,idList);
+  }
+
+  public ArrayList<String> addTerm(final OWLClassExpression exp, final OWLReasoner r, final OWLOntologyManager mgr, final OWLOntology ont, IRI iri, final boolean verbose ) throws Exception
+  {
+    ArrayList<String> idList;
+
+    kbLock.readLock().lock();
+    try
+    {
+      idList = getEquivalentTerms(exp,r,verbose);
+    }
+    finally
+    {
+      kbLock.readLock().unlock();
+    }
+
+    if ( !idList.isEmpty() )
+      return idList;
+
+    return applyOntologyChange( new Callable<ArrayList<String>>()
+    {
+      public ArrayList<String> call()
+      {
+        /*
+         * An earlier change on the writer lane might have added an equivalent class in the meantime
+         */
+        ArrayList<String> idList = getEquivalentTerms(exp,r,verbose);
+        if ( !idList.isEmpty() )
+          return idList;
+
+        String ricordoID = String.valueOf(System.currentTimeMillis());
+        OWLClass newOwlClass = df.getOWLClass(IRI.create(kbNs + ricordoID));
+
+        /*
+         * Only adding the axiom holds the write lock.  Reclassifying holds reasonerLock's write
+         * lock instead (taken before the write lock is released, so no query sees the reasoner
+         * unflushed), which only holds up queries that need the reasoner; the rest are answered
+         * from the old snapshot until updateTaxonomy swaps in the new one.
+         */
+        kbLock.writeLock().lock();
+        try
+        {
+          mgr.addAxiom(ont, df.getOWLEquivalentClassesAxiom(newOwlClass, exp) );
+          ontologyGeneration.incrementAndGet();
+          unsavedChanges = true;
+          reasonerLock.writeLock().lock();
+        }
+        finally
+        {
+          kbLock.writeLock().unlock();
+        }
+
+        try
+        {
+          if ( reasonerName.equals("elk") )
+            r.flush();
+
+          r.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+        }
+        finally
+        {
+          reasonerLock.writeLock().unlock();
+        }
+
+        updateTaxonomy( newOwlClass, r );
+        objToTermlist( newOwlClass, idList, false, verbose );
+
+        return idList;
+      }
+    }, ont, iri, mgr );
+  }
+
+  /*
+   * Bring the taxonomy snapshot up to date after a class was added and the reasoner
+   * reclassified.  The new snapshot is built without holding kbLock, and swapped in under the
+   * write lock; the generation is bumped again then, since responses cached in the meantime
+   * came from the old snapshot.  Only to be called on the writer lane.
+   */
+  public void updateTaxonomy( OWLClass added, OWLReasoner r )
+  {
+    Taxonomy updated;
+    PathGraph graph;
+
+    try
+    {
+      updated = ( taxonomy == null ) ? null : taxonomy.withClass( added, r );
+
+      if ( updated == null )
+        updated = Taxonomy.fromReasoner( this, r );
+
+      graph = new PathGraph( updated, pathLinks );
+    }
+    catch( Exception e )
+    {
+      logString( "Could not update the class hierarchy snapshot; answering hierarchy queries from the reasoner." );
+      updated = null;
+      graph = null;
+    }
+
+    kbLock.writeLock().lock();
+    try
+    {
+      taxonomy = updated;
+      pathGraph = graph;
+      ontologyGeneration.incrementAndGet();
+    }
+    finally
+    {
+      kbLock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Apply a change to the ontology on the writer lane, and wait for its result.
+   * Changes run one at a time, in the order they were submitted, each taking the write lock
+   * for as long as it modifies the ontology (so addTerm can reclassify without it).  Queries
+   * keep running while changes wait in the queue, and while the ontology is saved afterward
+   * (saving only reads the ontology).  The caller must not hold kbLock, or it would deadlock
+   * with the change waiting for the write lock.
+   */
+  public <T> T applyOntologyChange( final Callable<T> change, final OWLOntology ont, final IRI iri, final OWLOntologyManager mgr ) throws Exception
+  {
+    if ( kbLock.getReadHoldCount() != 0 || kbLock.isWriteLockedByCurrentThread() )
+      throw new IllegalStateException( "applyOntologyChange called while holding kbLock" );
+
+    Future<T> result = writerLane.submit( new Callable<T>()
+    {
+      public T call() throws Exception
+      {
+        T retVal = change.call();
+
+        if ( unsavedChanges )
+        {
+          unsavedChanges = false;
+
+          kbLock.readLock().lock();
+          try
+          {
+            maybeSaveOntology( ont, iri, mgr );
+          }
+          finally
+          {
+            kbLock.readLock().unlock();
+          }
+        }
+
+        return retVal;
+      }
+    });
+
+    try
+    {
+      return result.get();
+    }
+    catch( ExecutionException e )
+    {
+      if ( e.getCause() instanceof Exception )
+        throw (Exception) e.getCause();
+
+      throw e;
+    }
+  }
+
+  public static String shortUrl(String url)
+  {
+    int i = url.lastIndexOf("#");
+
+    if ( i != -1 )
+      return url.substring(i+1);
+
+    i = url.lastIndexOf("/");
+    int j = url.indexOf("/");
+
+    if ( i != j )
+      return url.substring(i+1);
+
+    return url;
+  }
+
+  /*
+   * Logging to stdout, through the asynchronous logger
+   */
+  public static void logString( String x )
+  {
+    logger.log( AsyncLogger.INFO, x );
+  }
+
+  public static void logDebug( String x )
+  {
+    logger.log( AsyncLogger.DEBUG, x );
+  }
+
+  /*
+   * One line per request: client, method, URI, status, response length (if known), and time taken
+   */
+  public static void logAccess( HttpExchange t, long startTime )
+  {
+    if ( !logger.isEnabled( AsyncLogger.INFO ) )
+      return;
+
+    long runTime = (System.nanoTime() - startTime) / 1000000;
+    String length = t.getResponseHeaders().getFirst("Content-Length");
+    String client;
+
+    try
+    {
+      client = t.getRemoteAddress().getAddress().getHostAddress();
+    }
+    catch( Exception e )
+    {
+      client = "-";
+    }
+
+    StringBuilder sb = new StringBuilder( 128 );
+    sb.append( client ).append( ' ' ).append( t.getRequestMethod() ).append( ' ' ).append( t.getRequestURI().getRawPath() );
+
+    if ( t.getRequestURI().getRawQuery() != null )
+      sb.append( '?' ).append( t.getRequestURI().getRawQuery() );
+
+    sb.append( ' ' ).append( t.getResponseCode() ).append( ' ' ).append( length != null ? length : "-" ).append( ' ' ).append( runTime ).append( "ms" );
+
+    logger.log( AsyncLogger.INFO, sb.toString() );
+  }
+
+  /*
+   * Logger that keeps console I/O off the request path.  Messages go into a bounded ring
+   * buffer, from which a daemon thread writes them to stdout in batches.  When the buffer is
+   * full, messages are dropped (and counted) rather than making requests wait for the console.
+   */
+  static class AsyncLogger implements Runnable
+  {
+    static final int DEBUG = 0, INFO = 1, WARN = 2, ERROR = 3;
+    static final String[] LEVEL_NAMES = { "debug", "info", "warn", "error" };
+
+    ArrayBlockingQueue<String> ring;
+    volatile int level;
+    AtomicLong dropped;
+
+    public AsyncLogger( int capacity, int level )
+    {
+      this.ring = new ArrayBlockingQueue<String>( capacity );
+      this.level = level;
+      this.dropped = new AtomicLong();
+    }
+
+    public static AsyncLogger start( int capacity )
+    {
+      final AsyncLogger logger = new AsyncLogger( capacity, INFO );
+
+      Thread writer = new Thread( logger, "owlkb-logger" );
+      writer.setDaemon( true );
+      writer.start();
+
+      /*
+       * Don't lose the last messages (e.g. why the ontology failed to load) at exit
+       */
+      Runtime.getRuntime().addShutdownHook( new Thread()
+      {
+        public void run()
+        {
+          logger.drain();
+        }
+      });
+
+      return logger;
+    }
+
+    public boolean isEnabled( int lvl )
+    {
+      return lvl >= level;
+    }
+
+    public void log( int lvl, String x )
+    {
+      if ( lvl < level )
+        return;
+
+      if ( !ring.offer( x ) )
+        dropped.incrementAndGet();
+    }
+
+    public void run()
+    {
+      while ( true )
+      {
+        try
+        {
+          String first = ring.take();
+
+          synchronized( this )
+          {
+            StringBuilder sb = new StringBuilder( first ).append( '\n' );
+            appendQueued( sb );
+            System.out.print( sb );
+            System.out.flush();
+          }
+        }
+        catch( InterruptedException e )
+        {
+          return;
+        }
+      }
+    }
+
+    public synchronized void drain()
+    {
+      StringBuilder sb = new StringBuilder();
+      appendQueued( sb );
+      System.out.print( sb );
+      System.out.flush();
+    }
+
+    void appendQueued( StringBuilder sb )
+    {
+      List<String> batch = new ArrayList<String>();
+      ring.drainTo( batch );
+
+      for ( String x : batch )
+        sb.append( x ).append( '\n' );
+
+      long lost = dropped.getAndSet( 0 );
+      if ( lost > 0 )
+        sb.append( "(" ).append( lost ).append( " log messages dropped because the log buffer was full)\n" );
+    }
+
+    public static int parseLevel( String name )
+    {
+      for ( int i = 0; i < LEVEL_NAMES.length; i++ )
+      {
+        if ( LEVEL_NAMES[i].equals( name.toLowerCase() ) )
+          return i;
+      }
+
+      return -1;
+    }
+  }
+
+  public String computeResponse( ArrayList<String> terms, boolean fJson, boolean longURI, boolean verbose )
+  {
+    StringBuilder x = new StringBuilder();
+
+    if ( verbose )
+    {
+      boolean fFirst = false;
+      x.append("{\n \"results\":\n [\n  " );
+
+      for ( String js : terms )
+      {
+        if ( !fFirst )
+          fFirst = true;
+        else
+          x.append( ",\n  " );
+
+        x.append( js );
+      }
+
+      x.append("\n ]\n}");
+
+      return x.toString();
+    }
+
+    if ( fJson )
+    {
+      x.append("[\n ");
+      boolean fFirst = false;
+
+      for ( String termp : terms )
+      {
+        if ( !fFirst )
+          fFirst = true;
+        else
+          x.append(",\n ");
+
+        x.append( "\"" + (longURI ? termp : shortformProvider.shortUrlOf(termp)) +"\"" );
+      }
+      x.append("]");
+    }
+    else
+    {
+      x.append("<table><tr><th>ID</th></tr>");
+
+      for ( String termp : terms )
+        x.append("<tr><td>" + (longURI ? termp : shortformProvider.shortUrlOf(termp)) +"</td></tr>");
+
+      x.append("</table>");
+    }
+
+    return x.toString();
+  }
+
+  public void initOwlkb( String [] args )
+  {
+    df = OWLManager.getOWLDataFactory();
+    rdfsLabel = df.getRDFSLabel();
+    kbLock = new ReentrantReadWriteLock();
+    reasonerLock = new ReentrantReadWriteLock();
+    writerLane = Executors.newSingleThreadExecutor();
+    ontologyGeneration = new AtomicLong();
+    snapshotQueries = new AtomicLong();
+    snapshotNanos = new AtomicLong();
+    reasonerQueries = new AtomicLong();
+    reasonerNanos = new AtomicLong();
+    bootId = Long.toString( System.currentTimeMillis(), 36 );
+
+    parseCommandlineArguments(args);
+
+    resultCache = new ResultCache( resultCacheBytes );
+    expressionCache = new ExpressionCache( parseCacheEntries );
+    responseEncoders = new ArrayBlockingQueue<ResponseEncoder>( threads );
+    batchPool = Executors.newFixedThreadPool( threads );
+  }
+
+  public void parseCommandlineArguments( String [] args )
+  {
+    reasonerName = "elk";
     hdSave = true;
     kbNs = "http://www.ricordo.eu/ricordo.owl#RICORDO_";
     kbFilename = "/home/sarala/testkb/ricordo.owl";  // Keep this silly default for backward compatibility
@@ -813,819 +2787,4889 @@ public class Owlkb
     getCountsFromFeather = false;
     openPhactsAppId = null;
     openPhactsAppKey = null;
+    threads = Runtime.getRuntime().availableProcessors();
+    virtualThreads = false;
+    resultCacheBytes = 64L * 1024 * 1024;
+    parseCacheEntries = 10000;
+    compressMinBytes = 1024;
+    fullTextProps = "all";
+    pathEdges = "subclass,regional_part_of,constitutional_part_of";
+    getPathsFromFeather = false;
+
+    int i;
+    String flag;
+
+    for ( i = 0; i < args.length; i++ )
+    {
+      if ( args[i].length() > 2 && args[i].substring(0,2).equals("--") )
+        flag = args[i].substring(2).toLowerCase();
+      else if ( args[i].length() > 1 && args[i].substring(0,1).equals("-") )
+        flag = args[i].substring(1).toLowerCase();
+      else
+        flag = args[i].toLowerCase();
+
+      if ( flag.equals("help") || flag.equals("h") )
+      {
+        System.out.println( "Command line options are as follows:"                  );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-file <path to file>"                                  );
+        System.out.println( "(Specifies which ontology file to use)"                );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-port <number>"                                        );
+        System.out.println( "(Specified which port the server runs on)"             );
+        System.out.println( "(Default: 20080)"                                      );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-reasoner elk, or -reasoner hermit"                    );
+        System.out.println( "(Specifies which reasoner to use)"                     );
+        System.out.println( "(Default: elk)"                                        );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-namespace <iri>"                                      );
+        System.out.println( "(Specifies namespace for ontology)"                    );
+        System.out.println( "(Default: http://www.ricordo.eu/ricordo.owl#RICORDO_)" );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-save true, or -save false"                            );
+        System.out.println( "(Specifies whether owlfile changes are saved)"         );
+        System.out.println( "(Default: true)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-uclsyntax true, or -uclsyntax false"                  );
+        System.out.println( "(Specifies whether OWLKB understands UCL syntax)"      );
+        System.out.println( "(Default: false)"                                      );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-threads <number>, or -threads virtual"                );
+        System.out.println( "(Specifies how many requests are handled in parallel," );
+        System.out.println( " or that each request gets its own virtual thread)"    );
+        System.out.println( "(Default: number of processors)"                      );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-cachesize <bytes>"                                    );
+        System.out.println( "(Size bound of the query result cache; 0 disables it)" );
+        System.out.println( "(Default: 67108864)"                                   );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-parsecache <number>"                                  );
+        System.out.println( "(How many parsed Manchester expressions to remember;"  );
+        System.out.println( " 0 disables the parse cache)"                          );
+        System.out.println( "(Default: 10000)"                                      );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-compressmin <bytes>"                                  );
+        System.out.println( "(Responses at least this large are compressed for"     );
+        System.out.println( " clients that accept gzip or deflate; -1 disables)"    );
+        System.out.println( "(Default: 1024)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-fulltextprops <properties>"                           );
+        System.out.println( "(Comma-separated annotation properties, as IRIs or"    );
+        System.out.println( " short forms, that /fulltext searches, e.g."           );
+        System.out.println( " label,hasExactSynonym,IAO_0000115; or all)"           );
+        System.out.println( "(Default: all)"                                        );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-pathedges <edge types>"                               );
+        System.out.println( "(Comma-separated edges that /shortestpath follows:"    );
+        System.out.println( " subclass, and object properties as IRIs or short"     );
+        System.out.println( " forms, from existential restrictions)"                );
+        System.out.println( "(Default: subclass,regional_part_of,"                  );
+        System.out.println( " constitutional_part_of)"                              );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-featherpaths true, or -featherpaths false"            );
+        System.out.println( "(Whether /shortestpath and /subgraph ask the remote"  );
+        System.out.println( " Feather service instead of searching locally)"        );
+        System.out.println( "(Default: false)"                                      );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-loglevel debug, info, warn, or error"                 );
+        System.out.println( "(Specifies how much is logged; debug logs every step"  );
+        System.out.println( " of every request)"                                    );
+        System.out.println( "(Default: info)"                                       );
+        System.out.println( "------------------------------------"                  );
+        System.out.println( "-sparql <url base>"                                    );
+        System.out.println( "(Base of URL to use as SPARQL endpoint, to allow"      );
+        System.out.println( " interaction with a triple store.)"                    );
+        System.out.println( "(Default: null)"                                       );
+        System.out.println( "------------------------------------"                  );
+/*
+        System.out.println( "-openPHACTSid <ID for openPHACTS API>"                 );
+        System.out.println( "-openPHACTSkey <App key for openPHACTS API>"           );
+        System.out.println( "(For enabling Owlkb to query the openPHACTS"           );
+        System.out.println( " API.)"                                                );
+        System.out.println( "------------------------------------"                  );
+*/
+        System.out.println( "-help"                                                 );
+        System.out.println( "(Displays this helpfile)"                              );
+        System.out.println( "" );
+        helpOnly = true;
+        return;
+      }
+
+      if ( flag.equals("port") || flag.equals("p") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            port = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            System.out.println( "Port must be a number." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Owlkb will listen on port "+args[++i] );
+        }
+        else
+        {
+          System.out.println( "Which port do you want the server to listen on?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("threads") || flag.equals("workers") )
+      {
+        if ( i+1 < args.length && args[i+1].toLowerCase().equals("virtual") )
+        {
+          virtualThreads = true;
+          System.out.println( "Owlkb will handle each request on its own virtual thread" );
+          i++;
+        }
+        else if ( i+1 < args.length )
+        {
+          try
+          {
+            threads = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            threads = 0;
+          }
+
+          if ( threads < 1 )
+          {
+            System.out.println( "Threads must be a positive number, or: virtual" );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Owlkb will handle up to "+args[++i]+" requests in parallel" );
+        }
+        else
+        {
+          System.out.println( "How many requests do you want the server to handle in parallel?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("cachesize") || flag.equals("cache_size") || flag.equals("cache-size") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            resultCacheBytes = Long.parseLong(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            resultCacheBytes = -1;
+          }
+
+          if ( resultCacheBytes < 0 )
+          {
+            System.out.println( "Cache size must be a number of bytes." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Query result cache will use up to "+args[++i]+" bytes" );
+        }
+        else
+        {
+          System.out.println( "How many bytes should the query result cache use?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("parsecache") || flag.equals("parse_cache") || flag.equals("parse-cache") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            parseCacheEntries = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            parseCacheEntries = -1;
+          }
+
+          if ( parseCacheEntries < 0 )
+          {
+            System.out.println( "Parse cache size must be a number of expressions." );
+            helpOnly = true;
+            return;
+          }
+          System.out.println( "Parse cache will remember up to "+args[++i]+" expressions" );
+        }
+        else
+        {
+          System.out.println( "How many parsed expressions should the parse cache remember?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("compressmin") || flag.equals("compress_min") || flag.equals("compress-min") )
+      {
+        if ( i+1 < args.length )
+        {
+          try
+          {
+            compressMinBytes = Integer.parseInt(args[i+1]);
+          }
+          catch( Exception e )
+          {
+            System.out.println( "Minimum compressed size must be a number of bytes (or -1)." );
+            helpOnly = true;
+            return;
+          }
+
+          if ( compressMinBytes < 0 )
+            System.out.println( "Response compression: disabled." );
+          else
+            System.out.println( "Responses of "+compressMinBytes+" bytes or more will be compressed" );
+          i++;
+        }
+        else
+        {
+          System.out.println( "How large must a response be before it is compressed?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("fulltextprops") || flag.equals("fulltext_props") || flag.equals("fulltext-props") )
+      {
+        if ( i+1 < args.length )
+        {
+          fullTextProps = args[++i];
+          System.out.println( "Full-text search will cover: "+fullTextProps );
+        }
+        else
+        {
+          System.out.println( "Which annotation properties should full-text search cover?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("pathedges") || flag.equals("path_edges") || flag.equals("path-edges") )
+      {
+        if ( i+1 < args.length )
+        {
+          pathEdges = args[++i];
+          System.out.println( "Shortest paths will follow: "+pathEdges );
+        }
+        else
+        {
+          System.out.println( "Which edges should shortest paths follow?" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("featherpaths") || flag.equals("feather_paths") || flag.equals("feather-paths") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+        {
+          getPathsFromFeather = true;
+          System.out.println( "Shortest paths and subgraphs will be requested from Feather." );
+        }
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+          getPathsFromFeather = false;
+        else
+        {
+          System.out.println( "featherpaths can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if ( flag.equals("loglevel") || flag.equals("log_level") || flag.equals("log-level") )
+      {
+        int level = ( i+1 < args.length ) ? AsyncLogger.parseLevel( args[i+1] ) : -1;
+
+        if ( level == -1 )
+        {
+          System.out.println( "loglevel can be set to: debug, info, warn, error" );
+          helpOnly = true;
+          return;
+        }
+
+        logger.level = level;
+        System.out.println( "Log level set to "+args[++i] );
+      }
+      else if ( flag.equals("rname") || flag.equals("reasoner") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("elk") || args[i+1].equals("hermit")) )
+        {
+          reasonerName = args[++i];
+          System.out.println( "Using "+reasonerName+" as reasoner" );
+        }
+        else
+        {
+          System.out.println( "Valid reasoners are: ELK, HermiT" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("hd") || flag.equals("hd_save") || flag.equals("save") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+          hdSave = true;
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+        {
+          hdSave = false;
+          System.out.println( "Saving changes to hard drive: disabled." );
+        }
+        else
+        {
+          System.out.println( "hd_save can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if ( flag.equals("openphactsid") )
+      {
+        if ( i+1 < args.length )
+        {
+          openPhactsAppId = args[i+1];
+          System.out.println( "Set to use "+args[i+1]+" as openPHACTS Application ID" );
+        }
+        i++;
+      }
+      else if ( flag.equals("openphactskey") )
+      {
+        if ( i+1 < args.length )
+        {
+          openPhactsAppKey = args[i+1];
+          System.out.println( "Set to use "+args[i+1]+" as openPHACTS Application Key" );
+        }
+        i++;
+      }
+      else if ( flag.equals( "uclsyntax" ) || flag.equals("ucl-syntax") || flag.equals("ucl_syntax") )
+      {
+        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+        {
+          /*
+           * Backwards compatibility (originally uclsyntax was a boolean and open-physiology was hardcoded as the endpoint
+           */
+          uclSyntax = "http://open-physiology.org:5052/uclsyntax/";
+          System.out.println( "UCL Syntax: endpoint set to http://open-physiology.org:5052/uclsyntax/" );
+        }
+        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+          uclSyntax = null;
+        else if ( i+1 < args.length )
+        {
+          uclSyntax = args[i+1];
+          System.out.println( "UCL Syntax: endpoint set to " + uclSyntax );
+        }
+        else
+        {
+          System.out.println( "uclsyntax can be set to: true, false" );
+          helpOnly = true;
+          return;
+        }
+        i++;
+      }
+      else if (flag.equals("kbns") || flag.equals("ns") || flag.equals("namespace") )
+      {
+        if ( i+1 < args.length )
+        {
+          System.out.println( "Using "+args[i+1]+" as ontology namespace." );
+          kbNs = args[++i];
+        }
+        else
+        {
+          System.out.println( "What do you want the ontology's namespace to be?" );
+          System.out.println( "Default: http://www.ricordo.eu/ricordo.owl#RICORDO_" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("sparql") )
+      {
+        if ( i+1 < args.length )
+        {
+          System.out.println( "Using "+args[i+1]+" as base of URL of SPARQL endpoint." );
+          sparql = args[++i];
+        }
+        else
+        {
+          System.out.println( "Specify the base of the URL of the SPARQL endpoint you want to use." );
+          System.out.println( "Default: null (in which case OWLKB will not interact with SPARQL)" );
+          helpOnly = true;
+          return;
+        }
+      }
+      else if ( flag.equals("kbfilename") || flag.equals("filename") || flag.equals("kbfile") || flag.equals("file") || flag.equals("kb") )
+      {
+        if ( i+1 < args.length )
+        {
+          System.out.println( "Using "+args[i+1]+" as ontology filename." );
+          kbFilename = args[++i];
+        }
+        else
+        {
+          System.out.println( "Specify the filename of the ontology." );
+          helpOnly = true;
+          return;
+        }
+      }
+      else
+      {
+        System.out.println( "Unrecognized command line argument: "+args[i] );
+        System.out.println( "For help, run with HELP as command line argument." );
+        helpOnly = true;
+        return;
+      }
+    }
+  }
+
+  /*
+   * Executor on which the server runs NetHandler.handle.  Virtual threads need Java 21,
+   * so they are looked up reflectively, allowing Owlkb to still compile on older JDKs.
+   */
+  public Executor createServerExecutor()
+  {
+    if ( virtualThreads )
+    {
+      try
+      {
+        return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch( Exception e )
+      {
+        logString( "This Java runtime does not support virtual threads; using "+threads+" worker threads instead." );
+      }
+    }
+
+    return Executors.newFixedThreadPool( threads );
+  }
+
+  public void sendGui(HttpExchange t)
+  {
+    String theHtml, theJS;
+
+    try
+    {
+      theHtml = readFile("gui.html");
+      theJS = readFile("gui.js");
+
+      if ( theHtml == null || theJS == null )
+      {
+        sendResponse( t, "The GUI could not be sent, due to a problem with the html file or the javascript file.", false );
+        return;
+      }
+
+      theHtml = theHtml.replace("@JAVASCRIPT", "<script type='text/javascript'>"+theJS+"</script>");
+
+      sendResponse( t, theHtml, false );
+    }
+    catch(Exception e)
+    {
+      ;
+    }
+  }
+
+  /*
+   * One page of the subterms, terms or instances of an expression: ?offset=<n>&limit=<n>
+   * (limit defaults to 100, and is at most 1000, as for /fulltext).  Results are in IRI order, so pages are stable while the
+   * ontology is unchanged, and only the requested page is rendered.  The response gives the
+   * total number of results.
+   */
+  public String computePagedResponse( String op, OWLClassExpression exp, OWLReasoner r, Map<String,String> args, boolean fJson, boolean verbose, boolean longURI, boolean viaReasoner )
+  {
+    int offset = 0, limit = 100;
+
+    try
+    {
+      if ( args.containsKey("offset") )
+        offset = Integer.parseInt( args.get("offset") );
+
+      if ( args.containsKey("limit") )
+        limit = Integer.parseInt( args.get("limit") );
+    }
+    catch( NumberFormatException e )
+    {
+      limit = -1;
+    }
+
+    if ( offset < 0 || limit < 1 || limit > 1000 )
+      return ( fJson || verbose ) ? "{\"error\": \"offset must be a number from 0 up, and limit a number from 1 to 1000\"}" : "offset must be a number from 0 up, and limit a number from 1 to 1000";
+
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null || op.equals("instances") ) ? -1 : tx.nodeOf( exp );
+    List<OWLEntity> entities = new ArrayList<OWLEntity>();  // Results not from the snapshot, or preceding those from it
+    int[] nodes = null;                                     // Results from the snapshot
+
+    if ( op.equals("instances") )
+    {
+      for ( Node<OWLNamedIndividual> ind : instancesOf( r, exp, false ) )
+        entities.add( ind.getRepresentativeElement() );
+
+      sortByIri( entities );
+    }
+    else if ( node != -1 )
+    {
+      if ( op.equals("terms") )
+      {
+        for ( int member : tx.members( node ) )
+          entities.add( shortformProvider.entity( member ) );
+
+        sortByIri( entities );
+      }
+
+      nodes = tx.descendants( node );
+      countHierarchyQuery( true, start );
+    }
+    else
+    {
+      if ( op.equals("terms") )
+      {
+        entities.addAll( equivalentClassesOf( r, exp ).getEntities() );
+        sortByIri( entities );
+      }
+
+      List<OWLEntity> subs = new ArrayList<OWLEntity>();
+
+      for ( Node<OWLClass> n : subClassesOf( r, exp, false ) )
+        subs.add( n.getRepresentativeElement() );
+
+      sortByIri( subs );
+      entities.addAll( subs );
+      countHierarchyQuery( false, start );
+    }
+
+    int fixed = entities.size();
+    int total = fixed + ( nodes == null ? 0 : nodes.length );
+    ArrayList<String> page = new ArrayList<String>();
+
+    for ( int i = offset; i < total && i - offset < limit; i++ )
+      objToTermlist( i < fixed ? entities.get(i) : tx.representative( nodes[i - fixed] ), page, false, verbose );
+
+    if ( !fJson && !verbose )
+      return "<p>" + total + " results</p>" + computeResponse( page, false, longURI, false );
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n \"total\": " ).append( total ).append( ",\n \"offset\": " ).append( offset ).append( ",\n \"limit\": " ).append( limit ).append( ",\n \"results\": " );
+
+    if ( verbose )
+    {
+      sb.append( "\n [\n  " );
+
+      for ( int i = 0; i < page.size(); i++ )
+        sb.append( i == 0 ? "" : ",\n  " ).append( page.get(i) );
+
+      sb.append( "\n ]" );
+    }
+    else
+      sb.append( computeResponse( page, true, longURI, false ) );
+
+    return sb.append( "\n}" ).toString();
+  }
+
+  public <T extends OWLEntity> void sortByIri( List<T> entities )
+  {
+    Collections.sort( entities, new Comparator<OWLEntity>()
+    {
+      public int compare( OWLEntity a, OWLEntity b )
+      {
+        return shortformProvider.iriString( a ).compareTo( shortformProvider.iriString( b ) );
+      }
+    });
+  }
+
+  /*
+   * /count/<class expression> gives the number of distinct classes strictly below it
+   */
+  public String computeCountResponse( String req, OWLClassExpression exp, OWLReasoner r, boolean fJson, boolean viaReasoner )
+  {
+    int count = countSubTerms( exp, r, viaReasoner );
+
+    if ( fJson )
+      return "{\n \"term\": \"" + escapeJSON( req ) + "\",\n \"count\": " + count + "\n}";
+
+    return escapeHTML( req ) + " has " + count + ( count == 1 ? " subterm" : " subterms" );
+  }
+
+  /*
+   * Number of distinct classes strictly below a class expression, not counting unsatisfiable
+   * ones.  Named classes are looked up in the snapshot's precomputed counts.
+   */
+  public int countSubTerms( OWLClassExpression exp, OWLReasoner r, boolean viaReasoner )
+  {
+    long start = System.nanoTime();
+    Taxonomy tx = viaReasoner ? null : taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node != -1 )
+    {
+      countHierarchyQuery( true, start );
+      return tx.descendantCount( node );
+    }
+
+    int count = 0;
+
+    for ( Node<OWLClass> n : subClassesOf( r, exp, false ) )
+    {
+      if ( !n.isBottomNode() )
+        count += n.getSize();
+    }
+
+    countHierarchyQuery( false, start );
+
+    return count;
+  }
+
+  /*
+   * Precomputed descendant count of a named class, or -1 if the snapshot doesn't have it
+   */
+  public int snapshotDescendantCount( OWLEntity e )
+  {
+    Taxonomy tx = taxonomy;
+    int node = ( tx == null || !e.isOWLClass() ) ? -1 : tx.nodeOf( e.asOWLClass() );
+
+    return ( node == -1 ) ? -1 : tx.descendantCount( node );
+  }
+
+  /*
+   * Lowest common ancestors: /lca/A,B,... gives the lowest named classes that all the given
+   * classes are subclasses of, each with a shortest subclass path up to it from every term
+   */
+  public String computeLcaResponse( String req, OWLOntology o, OWLEntityChecker ec, boolean fJson )
+  {
+    List<String> terms = new ArrayList<String>();
+
+    for ( int comma = topLevelComma( req ); comma != -1; comma = topLevelComma( req ) )
+    {
+      terms.add( req.substring( 0, comma ).trim() );
+      req = req.substring( comma + 1 );
+    }
+    terms.add( req.trim() );
+
+    if ( fJson )
+      return computeLcaJson( terms, o, ec );
+
+    LcaResult x = findLowestCommonAncestors( terms, o, ec );
+
+    if ( x.error != null )
+      return escapeHTML( x.error );
+
+    StringBuilder sb = new StringBuilder( "<table><tr><th>Ancestor</th><th>Depth</th><th>Paths</th></tr>" );
+
+    for ( int lca : x.lcas )
+    {
+      sb.append( "<tr><td>" ).append( shortformProvider.shortUrlOf( x.tx.representative( lca ) ) ).append( "</td><td>" ).append( x.tx.depth( lca ) ).append( "</td><td>" );
+
+      for ( Taxonomy.Ancestry a : x.ancestries )
+      {
+        int[] path = x.tx.pathUp( a, lca );
+
+        for ( int j = 0; j < path.length; j++ )
+          sb.append( j == 0 ? "" : " &lt; " ).append( shortformProvider.shortUrlOf( x.tx.representative( path[j] ) ) );
+
+        sb.append( "<br>" );
+      }
+
+      sb.append( "</td></tr>" );
+    }
+
+    return sb.append( "</table>" ).toString();
+  }
+
+  /*
+   * The /lca answer for a list of terms, as JSON
+   */
+  public String computeLcaJson( List<String> terms, OWLOntology o, OWLEntityChecker ec )
+  {
+    LcaResult x = findLowestCommonAncestors( terms, o, ec );
+
+    if ( x.error != null )
+      return "{\"error\": \"" + escapeJSON( x.error ) + "\"}";
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n \"terms\": [" );
+
+    for ( int i = 0; i < terms.size(); i++ )
+      sb.append( i == 0 ? "\"" : ", \"" ).append( escapeJSON( terms.get(i) ) ).append( "\"" );
+
+    sb.append( "],\n \"lca\":\n [" );
+
+    for ( int k = 0; k < x.lcas.length; k++ )
+    {
+      OWLEntity e = x.tx.representative( x.lcas[k] );
+      String label = labelByClass( e );
+
+      sb.append( k == 0 ? "\n  {\n" : ",\n  {\n" );
+      sb.append( "   \"term\": \"" ).append( shortformProvider.shortUrlOf( e ) ).append( "\",\n" );
+
+      if ( label != null )
+        sb.append( "   \"label\": \"" ).append( escapeJSON( label ) ).append( "\",\n" );
+
+      sb.append( "   \"depth\": " ).append( x.tx.depth( x.lcas[k] ) ).append( ",\n   \"paths\":\n   {" );
+
+      for ( int i = 0; i < terms.size(); i++ )
+      {
+        sb.append( i == 0 ? "\n    \"" : ",\n    \"" ).append( escapeJSON( terms.get(i) ) ).append( "\": [" );
+
+        int[] path = x.tx.pathUp( x.ancestries[i], x.lcas[k] );
+
+        for ( int j = 0; j < path.length; j++ )
+          sb.append( j == 0 ? "\"" : ", \"" ).append( shortformProvider.shortUrlOf( x.tx.representative( path[j] ) ) ).append( "\"" );
+
+        sb.append( "]" );
+      }
+
+      sb.append( "\n   }\n  }" );
+    }
+
+    return sb.append( x.lcas.length == 0 ? "]\n}" : "\n ]\n}" ).toString();
+  }
+
+  /*
+   * Semantic similarity: /similarity/A,B gives the Resnik and Lin similarities of two named
+   * classes, from the information content of their most informative common ancestor
+   */
+  public String computeSimilarityResponse( String req, OWLOntology o, OWLEntityChecker ec, boolean fJson )
+  {
+    int comma = topLevelComma( req );
+
+    if ( comma == -1 )
+      return fJson ? "{\"error\": \"Expected two terms separated by a comma\"}" : "Expected two terms separated by a comma";
+
+    List<String> terms = new ArrayList<String>();
+    terms.add( req.substring( 0, comma ).trim() );
+    terms.add( req.substring( comma + 1 ).trim() );
+
+    LcaResult x = findLowestCommonAncestors( terms, o, ec );
+
+    if ( x.error != null )
+      return fJson ? "{\"error\": \"" + escapeJSON( x.error ) + "\"}" : escapeHTML( x.error );
+
+    int a = x.ancestries[0].nodes[0], b = x.ancestries[1].nodes[0];
+    int mica = -1;
+
+    for ( int c : x.lcas )
+    {
+      if ( mica == -1 || x.tx.ic[c] > x.tx.ic[mica] )
+        mica = c;
+    }
+
+    double resnik = ( mica == -1 ) ? 0 : x.tx.ic[mica];
+    double lin = ( mica == -1 ) ? 0 : x.tx.linScore( resnik, a, b );
+    String micaId = ( mica == -1 ) ? null : shortformProvider.shortUrlOf( x.tx.representative( mica ) );
+
+    if ( !fJson )
+      return "<table><tr><th>Resnik</th><th>Lin</th><th>Most informative common ancestor</th></tr><tr><td>" +
+             String.format( Locale.ROOT, "%.3f", resnik ) + "</td><td>" + String.format( Locale.ROOT, "%.3f", lin ) + "</td><td>" +
+             ( micaId == null ? "" : micaId ) + "</td></tr></table>";
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n \"term1\": \"" ).append( escapeJSON( terms.get(0) ) ).append( "\",\n \"term2\": \"" ).append( escapeJSON( terms.get(1) ) ).append( "\",\n" );
+    sb.append( " \"mica\": " ).append( micaId == null ? "null" : "\"" + micaId + "\"" ).append( ",\n" );
+    sb.append( " \"resnik\": " ).append( String.format( Locale.ROOT, "%.3f", resnik ) ).append( ",\n" );
+    sb.append( " \"lin\": " ).append( String.format( Locale.ROOT, "%.3f", lin ) ).append( "\n}" );
+
+    return sb.toString();
+  }
+
+  /*
+   * /mostsimilar/A?k=<number of results>&measure=lin|resnik gives the named classes most
+   * similar to A (default: the top 10 by Lin similarity)
+   */
+  public String computeMostsimilarResponse( String req, Map<String,String> args, OWLOntology o, OWLEntityChecker ec, boolean fJson, boolean longURI )
+  {
+    int k = 10;
+
+    if ( args.containsKey("k") )
+    {
+      try
+      {
+        k = Integer.parseInt( args.get("k") );
+      }
+      catch( NumberFormatException e )
+      {
+        k = -1;
+      }
+
+      if ( k < 1 || k > 1000 )
+        return fJson ? "{\"error\": \"k must be a number from 1 to 1000\"}" : "k must be a number from 1 to 1000";
+    }
+
+    String measure = args.containsKey("measure") ? args.get("measure") : "lin";
+
+    if ( !measure.equals("lin") && !measure.equals("resnik") )
+      return fJson ? "{\"error\": \"measure can be lin or resnik\"}" : "measure can be lin or resnik";
+
+    List<LabelMatch> matches = mostSimilar( req.trim(), k, measure.equals("lin"), o, ec );
+
+    if ( matches == null )
+      return fJson ? "{\"error\": \"Not a named class: " + escapeJSON( req.trim() ) + "\"}" : "Not a named class: " + escapeHTML( req.trim() );
+
+    return computeLabelMatchesResponse( matches, fJson, longURI, true );
+  }
+
+  /*
+   * The k named classes most similar to the given one, or null if it isn't a named class in
+   * the taxonomy snapshot
+   */
+  public List<LabelMatch> mostSimilar( String term, int k, boolean useLin, OWLOntology o, OWLEntityChecker ec )
+  {
+    Taxonomy tx = taxonomy;
+    OWLClassExpression exp = ( tx == null ) ? null : parseManchester( term, o, ec );
+    int node = ( exp == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node == -1 )
+      return null;
+
+    double[] scores = new double[k];
+    int[] nodes = tx.mostSimilar( node, k, useLin, scores );
+    List<LabelMatch> matches = new ArrayList<LabelMatch>();
+
+    for ( int i = 0; i < nodes.length; i++ )
+    {
+      IRI iri = tx.representative( nodes[i] ).getIRI();
+      String label = labelIndex.primaryLabel( iri );
+
+      matches.add( new LabelMatch( iri, label == null ? "" : label, scores[i] ) );
+    }
+
+    return matches;
+  }
+
+  static class LcaResult
+  {
+    String error;
+    Taxonomy tx;
+    Taxonomy.Ancestry[] ancestries;    // One per term, in order
+    int[] lcas;
+  }
+
+  /*
+   * Terms must be named classes in the taxonomy snapshot.  The search runs up its parent
+   * links from each term; the depths were computed when the snapshot was built.
+   */
+  public LcaResult findLowestCommonAncestors( List<String> terms, OWLOntology o, OWLEntityChecker ec )
+  {
+    LcaResult x = new LcaResult();
+
+    x.tx = taxonomy;
+
+    if ( x.tx == null )
+    {
+      x.error = "The class hierarchy snapshot is not available";
+      return x;
+    }
+
+    x.ancestries = new Taxonomy.Ancestry[terms.size()];
+
+    for ( int i = 0; i < terms.size(); i++ )
+    {
+      OWLClassExpression exp = parseManchester( terms.get(i), o, ec );
+      int node = ( exp == null ) ? -1 : x.tx.nodeOf( exp );
+
+      if ( node == -1 )
+      {
+        x.error = "Not a named class: " + terms.get(i);
+        return x;
+      }
+
+      x.ancestries[i] = x.tx.ancestry( node );
+    }
+
+    x.lcas = x.tx.lowestCommonAncestors( x.ancestries );
+
+    return x;
+  }
+
+  /*
+   * Subsumption check: /issubclass/A,B says whether A is a subclass of (or equivalent to) B
+   */
+  public String computeIssubclassResponse( String req, OWLReasoner r, OWLOntology o, OWLEntityChecker ec, boolean fJson )
+  {
+    int comma = topLevelComma( req );
+
+    if ( comma == -1 )
+      return fJson ? "{\"error\": \"Expected two class expressions separated by a comma\"}" : "Expected two class expressions separated by a comma";
+
+    String sub = req.substring( 0, comma ).trim(), sup = req.substring( comma + 1 ).trim();
+    Boolean result;
+
+    try
+    {
+      result = isSubclass( sub, sup, r, o, ec );
+    }
+    catch( RuntimeException e )
+    {
+      String error = ( e.getMessage() == null ) ? "There was an error getting the results." : e.getMessage();
+      return fJson ? "{\"error\": \"" + escapeJSON( error ) + "\"}" : escapeHTML( error );
+    }
+
+    if ( result == null )
+      return fJson ? "{\"error\": \"Malformed Manchester query\"}" : "Malformed Manchester query";
+
+    if ( fJson )
+      return "{\n \"subclass\": \"" + escapeJSON( sub ) + "\",\n \"superclass\": \"" + escapeJSON( sup ) + "\",\n \"result\": " + result + "\n}";
+
+    return result ? escapeHTML( sub ) + " is a subclass of " + escapeHTML( sup ) : escapeHTML( sub ) + " is not a subclass of " + escapeHTML( sup );
+  }
+
+  /*
+   * Index of the first comma outside parentheses and braces, or -1
+   */
+  public static int topLevelComma( String x )
+  {
+    int depth = 0;
+
+    for ( int i = 0; i < x.length(); i++ )
+    {
+      char c = x.charAt( i );
+
+      if ( c == '(' || c == '{' )
+        depth++;
+      else if ( c == ')' || c == '}' )
+        depth--;
+      else if ( c == ',' && depth == 0 )
+        return i;
+    }
+
+    return -1;
+  }
+
+  /*
+   * Whether sub is a subclass of (or equivalent to) sup, or null if either doesn't parse.
+   * Named classes are checked against the taxonomy snapshot's reachability labels; class
+   * expressions go to the reasoner, as one entailment check where it can decide them.
+   * Throws IllegalArgumentException (with the reason) if either isn't EL, and
+   * UnsupportedOperationException if neither is a named class and the reasoner can't decide
+   * entailments (ELK).
+   */
+  public Boolean isSubclass( String sub, String sup, OWLReasoner r, OWLOntology o, OWLEntityChecker ec )
+  {
+    String error = nonELError( sub );
+
+    if ( error == null )
+      error = nonELError( sup );
+
+    if ( error != null )
+      throw new IllegalArgumentException( error );
+
+    OWLClassExpression a = parseManchester( sub, o, ec ), b = parseManchester( sup, o, ec );
+
+    if ( a == null || b == null )
+      return null;
+
+    Taxonomy tx = taxonomy;
+    int na = ( tx == null ) ? -1 : tx.nodeOf( a ), nb = ( tx == null ) ? -1 : tx.nodeOf( b );
+
+    if ( na != -1 && nb != -1 )
+      return tx.isBelow( na, nb );
+
+    if ( !reasonerName.equals("elk") )
+      return isEntailed( r, df.getOWLSubClassOfAxiom( a, b ) );
+
+    if ( !b.isAnonymous() )
+    {
+      OWLClass bClass = b.asOWLClass();
+      return bClass.isOWLThing() || superClassesOf( r, a, false ).containsEntity( bClass ) || equivalentClassesOf( r, a ).contains( bClass );
+    }
+
+    if ( !a.isAnonymous() )
+    {
+      OWLClass aClass = a.asOWLClass();
+      return aClass.isOWLNothing() || isBelowExpression( aClass, b, r, tx );
+    }
+
+    /*
+     * ELK doesn't implement isEntailed, but it can compare named classes equivalent to the
+     * expressions (e.g. ones added by /eqterms)
+     */
+    Node<OWLClass> aEquivalents = equivalentClassesOf( r, a );
+
+    if ( aEquivalents.isBottomNode() )
+      return true;
+
+    if ( aEquivalents.getSize() > 0 )
+      return isBelowExpression( aEquivalents.getRepresentativeElement(), b, r, tx );
+
+    Node<OWLClass> bEquivalents = equivalentClassesOf( r, b );
+
+    if ( bEquivalents.getSize() > 0 )
+    {
+      OWLClass c = bEquivalents.getRepresentativeElement();
+      return c.isOWLThing() || superClassesOf( r, a, false ).containsEntity( c );
+    }
+
+    throw new UnsupportedOperationException( "The elk reasoner can only compare two class expressions if one of them is equivalent to a named class (see /eqterms)" );
+  }
+
+  /*
+   * Whether a named class is below (or equivalent to) a class expression, for ELK, without
+   * listing everything below the expression: through a named class equivalent to it if there
+   * is one, otherwise through its direct subclasses (a class below the expression is below one
+   * of them), compared with the snapshot's reachability labels.  Falls back to the reasoner's
+   * full set of subclasses if the snapshot doesn't have the classes involved.
+   */
+  public boolean isBelowExpression( OWLClass a, OWLClassExpression b, OWLReasoner r, Taxonomy tx )
+  {
+    Node<OWLClass> equivalents = equivalentClassesOf( r, b );
+
+    if ( equivalents.contains( a ) )
+      return true;
+
+    int na = ( tx == null ) ? -1 : tx.nodeOf( a );
+
+    if ( na != -1 && na == tx.bottom )
+      return true;
+
+    if ( equivalents.isBottomNode() )
+      return false;
+
+    if ( na != -1 && equivalents.getSize() > 0 )
+    {
+      int nb = tx.nodeOf( equivalents.getRepresentativeElement() );
+
+      if ( nb != -1 )
+        return tx.isBelow( na, nb );
+    }
+    else if ( na != -1 )
+    {
+      boolean known = true;
+
+      for ( Node<OWLClass> child : subClassesOf( r, b, true ) )
+      {
+        if ( child.isBottomNode() )
+          continue;
+
+        int nc = tx.nodeOf( child.getRepresentativeElement() );
+
+        if ( nc == -1 )
+        {
+          known = false;
+          break;
+        }
+
+        if ( tx.isBelow( na, nc ) )
+          return true;
+      }
+
+      if ( known )
+        return false;
+    }
+
+    return subClassesOf( r, b, false ).containsEntity( a );
+  }
+
+  /*
+   * Autocomplete a label: /autocomplete/<prefix>?k=<max results>&under=<class expression>
+   * returns the labelled entities whose label starts with the prefix, optionally restricted
+   * to subclasses of the expression.
+   */
+  public String computeAutocompleteResponse( String prefix, Map<String,String> args, OWLReasoner r, OWLOntology o, OWLEntityChecker ec, boolean fJson, boolean longURI )
+  {
+    int k = 10;
+
+    if ( args.containsKey("k") )
+    {
+      try
+      {
+        k = Integer.parseInt( args.get("k") );
+      }
+      catch( NumberFormatException e )
+      {
+        k = -1;
+      }
+
+      if ( k < 1 || k > 1000 )
+        return fJson ? "{\"error\": \"k must be a number from 1 to 1000\"}" : "k must be a number from 1 to 1000";
+    }
+
+    if ( prefix.trim().equals("") )
+      return computeLabelMatchesResponse( new ArrayList<LabelMatch>(), fJson, longURI, false );
+
+    SubclassFilter within = null;
+    String under = args.get("under");
+
+    if ( under != null )
+    {
+      String error = nonELError( under );
+      if ( error != null )
+        return fJson ? "{\"error\": \"" + escapeJSON( error ) + "\"}" : error;
+
+      OWLClassExpression exp = parseManchester( under, o, ec );
+
+      if ( exp == null )
+        return fJson ? "{\"error\": \"Malformed Manchester query\"}" : "Malformed Manchester query";
+
+      within = new SubclassFilter();
+      within.tx = taxonomy;
+      within.under = ( within.tx == null ) ? -1 : within.tx.nodeOf( exp );
+
+      /*
+       * Only class expressions (or classes not in the snapshot yet) need the reasoner
+       */
+      if ( within.under == -1 )
+      {
+        within.iris = new HashSet<IRI>();
+
+        for ( OWLClass c : subClassesOf( r, exp, false ).getFlattened() )
+          within.iris.add( c.getIRI() );
+
+        for ( OWLClass c : equivalentClassesOf( r, exp ).getEntities() )
+          within.iris.add( c.getIRI() );
+      }
+    }
+
+    return computeLabelMatchesResponse( labelIndex.complete( prefix, k, within ), fJson, longURI, false );
+  }
+
+  /*
+   * The subclasses of an /autocomplete?under= expression: from the taxonomy snapshot for a
+   * named class, or else a set of IRIs from the reasoner
+   */
+  static class SubclassFilter
+  {
+    Set<IRI> iris;
+    Taxonomy tx;
+    int under;
+
+    public boolean accepts( IRI iri )
+    {
+      if ( iris != null )
+        return iris.contains( iri );
+
+      int node = tx.nodeOfIri( iri );
+
+      return node != -1 && tx.isBelow( node, under );
+    }
+  }
+
+  /*
+   * Fuzzy label search: /fuzzysearch/<text>?k=<max results>&min=<min score from 0 to 1>
+   * returns the labelled entities whose normalized labels share the most trigrams with the
+   * normalized text, best first.
+   */
+  public String computeFuzzysearchResponse( String text, Map<String,String> args, boolean fJson, boolean longURI )
+  {
+    int k = 10;
+    double minScore = 0.3;
+
+    try
+    {
+      if ( args.containsKey("k") )
+        k = Integer.parseInt( args.get("k") );
+
+      if ( args.containsKey("min") )
+        minScore = Double.parseDouble( args.get("min") );
+    }
+    catch( NumberFormatException e )
+    {
+      k = -1;
+    }
+
+    if ( k < 1 || k > 1000 || !(minScore >= 0 && minScore <= 1) )
+      return fJson ? "{\"error\": \"k must be a number from 1 to 1000, and min a number from 0 to 1\"}" : "k must be a number from 1 to 1000, and min a number from 0 to 1";
+
+    return computeLabelMatchesResponse( labelIndex.fuzzySearch( text, k, minScore ), fJson, longURI, true );
+  }
+
+  /*
+   * Full-text search: /fulltext/<words>?offset=<n>&limit=<n> returns the entities whose
+   * indexed annotations best match the words (ranked by BM25), one page at a time.
+   */
+  public String computeFulltextResponse( String text, Map<String,String> args, boolean fJson, boolean longURI )
+  {
+    int offset = 0, limit = 20;
+
+    try
+    {
+      if ( args.containsKey("offset") )
+        offset = Integer.parseInt( args.get("offset") );
+
+      if ( args.containsKey("limit") )
+        limit = Integer.parseInt( args.get("limit") );
+    }
+    catch( NumberFormatException e )
+    {
+      limit = -1;
+    }
+
+    if ( offset < 0 || limit < 1 || limit > 1000 )
+      return fJson ? "{\"error\": \"offset must be a number from 0 up, and limit a number from 1 to 1000\"}" : "offset must be a number from 0 up, and limit a number from 1 to 1000";
+
+    int[] total = new int[1];
+    List<LabelMatch> matches = fullTextIndex.search( text, offset, limit, total );
+
+    if ( !fJson )
+      return "<p>" + total[0] + " matches</p>" + computeLabelMatchesResponse( matches, false, longURI, true );
+
+    return "{\n\"total\": " + total[0] + ",\n\"offset\": " + offset + ",\n\"limit\": " + limit + ",\n\"results\": " + computeLabelMatchesResponse( matches, true, longURI, true ) + "\n}";
+  }
+
+  public String computeLabelMatchesResponse( List<LabelMatch> matches, boolean fJson, boolean longURI, boolean withScores )
+  {
+    StringBuilder x = new StringBuilder();
+
+    if ( fJson )
+    {
+      x.append( "[" );
+
+      for ( int i = 0; i < matches.size(); i++ )
+      {
+        LabelMatch match = matches.get(i);
+        String term = longURI ? match.iri.toString() : shortUrl( match.iri.toString() );
+
+        x.append( i == 0 ? "\n " : ",\n " );
+        x.append( "{\"term\": \"" ).append( escapeJSON( term ) ).append( "\", \"label\": \"" ).append( escapeJSON( match.label ) ).append( "\"" );
+
+        if ( withScores )
+          x.append( ", \"score\": " ).append( String.format( Locale.ROOT, "%.3f", match.score ) );
+
+        x.append( "}" );
+      }
+
+      x.append( "\n]" );
+    }
+    else
+    {
+      x.append( "<table><tr><th>ID</th><th>Label</th>" ).append( withScores ? "<th>Score</th>" : "" ).append( "</tr>" );
+
+      for ( LabelMatch match : matches )
+      {
+        x.append( "<tr><td>" ).append( longURI ? match.iri.toString() : shortUrl( match.iri.toString() ) ).append( "</td><td>" ).append( escapeHTML( match.label ) ).append( "</td>" );
+
+        if ( withScores )
+          x.append( "<td>" ).append( String.format( Locale.ROOT, "%.3f", match.score ) ).append( "</td>" );
+
+        x.append( "</tr>" );
+      }
+
+      x.append( "</table>" );
+    }
+
+    return x.toString();
+  }
+
+  public String computeAddlabelResponse( final OWLOntology o, IRI ontology_iri, final OWLOntologyManager m, String req, final boolean fJson )
+  {
+    int eqPos = req.indexOf('=');
+
+    if ( eqPos == -1 || eqPos == 0 )
+    {
+      if ( fJson )
+        return "{'syntax error'}";
+      else
+        return "Invalid syntax.  Syntax: /addlabel/iri=label, e.g.: /addlabel/RICORDO_123=volume of blood";
+    }
+
+    final String iri = req.substring(0,eqPos);
+    final String label = req.substring(eqPos+1);
+
+    if ( iri.length() < "RICORDO_".length() || !iri.substring(0,"RICORDO_".length()).equals("RICORDO_") )
+    {
+      if ( fJson )
+        return "{'non-ricordo class error'}";
+      else
+        return "Only RICORDO classes can have labels added to them through OWLKB.";
+    }
+
+    if ( label.trim().equals("") )
+    {
+      if ( fJson )
+        return "{'blank label error'}";
+      else
+        return "Blank labels are not allowed.";
+    }
+
+    try
+    {
+      return applyOntologyChange( new Callable<String>()
+      {
+        public String call()
+        {
+          kbLock.writeLock().lock();
+          try
+          {
+            return addLabel( o, m, iri, label, fJson );
+          }
+          finally
+          {
+            kbLock.writeLock().unlock();
+          }
+        }
+      }, o, ontology_iri, m );
+    }
+    catch( Exception e )
+    {
+      return fJson ? "{'error'}" : "There was an error adding the label.";
+    }
+  }
+
+  /*
+   * Add an rdfs:label to a class.  Only to be called on the writer lane.
+   */
+  public String addLabel( OWLOntology o, OWLOntologyManager m, String iri, String label, boolean fJson )
+  {
+    OWLEntity e = shortformProvider.getEntity(iri);
+
+    if ( e == null || !e.isOWLClass() )
+    {
+      if ( fJson )
+        return "{'class not found error'}";
+      else
+        return "The specified class could not be found.  Please make sure you're using the shortform of the iri, e.g., RICORDO_123 instead of http://website.com/RICORDO_123";
+    }
+
+    String[] existing = labelIndex.readLabels( e, o );
+
+    if ( existing != null && Arrays.asList( existing ).contains( label ) )
+      return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
+
+    IRI rdfsLabelIRI = org.semanticweb.owlapi.vocab.OWLRDFVocabulary.RDFS_LABEL.getIRI();
+    OWLAnnotation a = df.getOWLAnnotation( df.getOWLAnnotationProperty(rdfsLabelIRI), df.getOWLLiteral(label) );
+    OWLAxiom axiom = df.getOWLAnnotationAssertionAxiom(e.asOWLClass().getIRI(), a);
+    m.applyChange(new AddAxiom( o, axiom ));
+    labelIndex.refresh( e );
+    fullTextIndex.addText( e.getIRI(), rdfsLabel, label );
+    ontologyGeneration.incrementAndGet();
+    logString( "Added rdfs:label "+label+" to class "+iri+"." );
+
+    unsavedChanges = true;
+
+    return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
+  }
+
+  public void maybeSaveOntology( OWLOntology ont, IRI iri, OWLOntologyManager m )
+  {
+    if ( hdSave )
+    {
+      logString( "Saving ontology to hard drive..." );
+
+      try
+      {
+        m.saveOntology(ont,iri);
+      }
+      catch ( OWLOntologyStorageException e )
+      {
+        e.printStackTrace(); //To do: proper error handling here
+      }
+
+      logString( "Finished saving ontology to hard drive." );
+    }
+    else
+      logString( "Skipping writing to hard drive (disabled by commandline argument)." );
+  }
+
+  /*
+   * Parsed expressions are cached (whether the string came from the request or from LOLS's
+   * translation of UCL syntax), so repeated queries skip the parser and the entity checker.
+   */
+  public OWLClassExpression parseManchester( String manchester, OWLOntology o, OWLEntityChecker ec )
+  {
+    long generation = ontologyGeneration.get();
+    ParsedExpression cached = expressionCache.get( manchester, generation );
+
+    if ( cached != null )
+      return cached.exp;
+
+    OWLClassExpression exp = parseManchesterUncached( manchester, o, ec );
+
+    expressionCache.put( manchester, exp, generation );
+
+    return exp;
+  }
+
+  public OWLClassExpression parseManchesterUncached( String manchester, OWLOntology o, OWLEntityChecker ec )
+  {
+    ManchesterOWLSyntaxEditorParser parser;
+    OWLClassExpression exp;
+
+    parser = new ManchesterOWLSyntaxEditorParser(df, manchester);
+    parser.setDefaultOntology(o);
+    parser.setOWLEntityChecker(ec);
+
+    /*
+     * The entity checker reads the shortform provider, which changes along with the ontology
+     */
+    kbLock.readLock().lock();
+    try
+    {
+      exp = parser.parseClassExpression();
+    }
+    catch(Exception e)
+    {
+      return null;
+    }
+    finally
+    {
+      kbLock.readLock().unlock();
+    }
+
+    return exp;
+  }
+
+  public String computeRdfstoreResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLEntityChecker ec, OWLReasoner r, String req )
+  {
+    String x = fullIriFromFullOrShortIri( req, o );
+
+    if ( x != null )
+      return x;
+
+    OWLClassExpression exp = parseManchester( req, o, ec );
+
+    if ( exp != null )
+    {
+      ArrayList<String> terms = getSubTerms(exp, r, true, false, false, false);
+
+      return computeResponse( terms, true, true, false );
+    }
+
+    return req;
+  }
+
+  public String computeSimilarMoleculesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, OWLEntityChecker ec, String req )
+  {
+    if ( openPhactsAppId == null || openPhactsAppKey == null )
+      return "{\"error\": \"To use the similar_molecules command, OWLKB must have openPHACTS appID and appKey specified (using Owlkb's command-line arguments)\"}";
+
+    if ( !req.substring(0,4).equals("http") )
+      req = "http://rdf.ebi.ac.uk/resource/chembl/molecule/" + req;
+
+    StringBuilder sb = new StringBuilder("https://beta.openphacts.org/1.5/compound/classifications?uri=");
+    sb.append( URLEncode( req ) );
+    sb.append( "&_format=json&app_id=" );
+    sb.append( openPhactsAppId );
+    sb.append( "&app_key=" );
+    sb.append( openPhactsAppKey );
+
+    String raw = queryURL( sb.toString() );
+
+    if ( raw == null )
+      return "{\"error\": \"Could not get details about indicated molecule from OpenPHACTS\"}";
+
+    String classification = naiveJsonParse( raw, "hasChebiClassification", "[", "]" );
+
+    if ( classification == null )
+      return "{\"error\": \"Could not parse OpenPHACTS's response\"}";
+
+    java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("CHEBI_[\\d]*").matcher(classification);
+
+    /*
+     * The CHEBI classes most similar to the molecule's classifications, each scored by its
+     * best Lin similarity to any of them
+     */
+    Map<IRI,LabelMatch> similar = new HashMap<IRI,LabelMatch>();
+
+    while ( matcher.find() )
+    {
+      String chebi = matcher.group();
+      List<LabelMatch> matches = mostSimilar( chebi, 10, true, o, ec );
+
+      if ( matches == null )
+        return "{\"error\": \"OpenPHACTS indicated a CHEBI term, "+chebi+", unrecognized by OWLKB\"}";
+
+      for ( LabelMatch match : matches )
+      {
+        LabelMatch known = similar.get( match.iri );
+
+        if ( known == null || known.score < match.score )
+          similar.put( match.iri, match );
+      }
+    }
+
+    List<LabelMatch> ranked = new ArrayList<LabelMatch>( similar.values() );
+
+    Collections.sort( ranked, new Comparator<LabelMatch>()
+    {
+      public int compare( LabelMatch a, LabelMatch b )
+      {
+        return ( a.score != b.score ) ? ( a.score > b.score ? -1 : 1 ) : a.iri.compareTo( b.iri );
+      }
+    });
+
+    return computeLabelMatchesResponse( ranked.subList( 0, Math.min( 10, ranked.size() ) ), true, false, true );
+  }
+
+  /*
+   * /subgraph/A,B,C,... connects the given classes with a small tree over the /shortestpath
+   * graph: it starts from the first class, and repeatedly adds a shortest path from the tree
+   * to the nearest class not yet in it.  ?budget bounds the number of graph nodes the
+   * searches visit in all (default 1000000); classes left out for lack of budget, or because
+   * nothing connects them, are listed as "unconnected".
+   */
+  public String computeSubgraphResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req, Map<String,String> args )
+  {
+    if ( getPathsFromFeather )
+    {
+      req = "," + req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
+      req = req.replace("#", "%23");
+
+      String featherResponse = queryFeather("subgraph", req);
+
+      if ( featherResponse == null )
+        return "?";
+      else
+        return featherResponse;
+    }
+
+    PathGraph g = pathGraph;
+
+    if ( g == null )
+      return "{\"error\": \"The class hierarchy snapshot is not available\"}";
+
+    int budget = 1000000;
+
+    if ( args.containsKey("budget") )
+    {
+      try
+      {
+        budget = Integer.parseInt( args.get("budget") );
+      }
+      catch( NumberFormatException e )
+      {
+        budget = -1;
+      }
+
+      if ( budget < 1 )
+        return "{\"error\": \"budget must be a number from 1 up\"}";
+    }
+
+    String[] terms = req.replace("fma:", "FMA_").split(",");
+
+    /*
+     * As for /apinatomy
+     */
+    if ( terms.length > 250 )
+      return "{\"error\": \"At most 250 terms can be connected at once\"}";
+
+    int[] nodes = new int[terms.length];
+
+    for ( int i = 0; i < terms.length; i++ )
+    {
+      terms[i] = terms[i].trim();
+      nodes[i] = pathNodeOf( g, terms[i] );
+
+      if ( nodes[i] == -1 )
+        return "{\"error\": \"Not a named class: " + escapeJSON( fmaTerm( terms[i] ) ) + "\"}";
+    }
+
+    PathGraph.Tree tree = g.connect( nodes, budget );
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n \"nodes\":\n [" );
+
+    for ( int i = 0; i < tree.nodes.size; i++ )
+    {
+      OWLEntity e = g.tx.representative( tree.nodes.data[i] );
+      String label = labelByClass( e );
+
+      sb.append( i == 0 ? "\n  {" : ",\n  {" ).append( "\"term\": \"" ).append( fmaTerm( shortformProvider.shortUrlOf( e ) ) ).append( "\"" );
+
+      if ( label != null )
+        sb.append( ", \"label\": \"" ).append( escapeJSON( label ) ).append( "\"" );
+
+      sb.append( "}" );
+    }
+
+    sb.append( tree.nodes.size == 0 ? "],\n \"edges\":\n [" : "\n ],\n \"edges\":\n [" );
+
+    /*
+     * Edges are given the way round their axioms state them: from the subclass, or from C in "C SubClassOf P some D"
+     */
+    for ( int i = 0; i < tree.edges.size; i += 3 )
+    {
+      int a = tree.edges.data[i], k = tree.edges.data[i+1], b = tree.edges.data[i+2];
+
+      if ( g.isReversed( k ) )
+      {
+        int swap = a;
+        a = b;
+        b = swap;
+      }
+
+      sb.append( i == 0 ? "\n  {" : ",\n  {" );
+      sb.append( "\"from\": \"" ).append( fmaTerm( shortformProvider.shortUrlOf( g.tx.representative( a ) ) ) );
+      sb.append( "\", \"to\": \"" ).append( fmaTerm( shortformProvider.shortUrlOf( g.tx.representative( b ) ) ) );
+      sb.append( "\", \"edge\": \"" ).append( escapeJSON( g.edgeName( k ) ) ).append( "\"}" );
+    }
+
+    sb.append( tree.edges.size == 0 ? "],\n \"unconnected\": [" : "\n ],\n \"unconnected\": [" );
+
+    for ( int i = 0; i < tree.unconnected.size; i++ )
+      sb.append( i == 0 ? "\"" : ", \"" ).append( fmaTerm( shortformProvider.shortUrlOf( g.tx.representative( tree.unconnected.data[i] ) ) ) ).append( "\"" );
+
+    sb.append( "],\n \"truncated\": " ).append( tree.truncated ).append( "\n}" );
+
+    return sb.toString();
+  }
+
+  /*
+   * A term as /shortestpath and /subgraph report it: FMA short forms with the fma: prefix
+   * requests use (e.g. fma:7088 for FMA_7088), anything else as it is
+   */
+  public static String fmaTerm( String term )
+  {
+    return term.startsWith( "FMA_" ) ? "fma:" + term.substring( "FMA_".length() ) : term;
+  }
+
+  /*
+   * The /shortestpath graph node of a class given by short form or IRI, or -1
+   */
+  public int pathNodeOf( PathGraph g, String term )
+  {
+    OWLEntity e = shortformProvider.getEntity( term );
+
+    if ( e == null )
+    {
+      int id = shortformProvider.idOfIri( term );
+      e = ( id == -1 ) ? null : shortformProvider.entity( id );
+    }
+
+    return ( e == null || !e.isOWLClass() ) ? -1 : g.tx.nodeOf( e.asOWLClass() );
+  }
+
+  /*
+   * /shortestpath/A,B finds a shortest path between two classes, along subclass links and
+   * asserted part-of restrictions (see -pathedges), in either direction.  Each step of the
+   * path says which edge led to it from the step before: "edge": "subClassOf" with
+   * "reversed": false means the previous class is a subclass of this one.
+   */
+  public String computeShortestpathResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
+  {
+    if ( getPathsFromFeather )
+    {
+      req = req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
+      String featherResponse = queryFeather("shortpath", req);
+
+      if ( featherResponse == null )
+        return "?";
+      else
+        return featherResponse;
+    }
+
+    PathGraph g = pathGraph;
+
+    if ( g == null )
+      return "{\"error\": \"The class hierarchy snapshot is not available\"}";
+
+    String[] ends = req.replace("fma:", "FMA_").split(",");
+
+    if ( ends.length != 2 )
+      return "{\"error\": \"Expected two terms separated by a comma\"}";
+
+    int[] nodes = new int[2];
+
+    for ( int i = 0; i < 2; i++ )
+    {
+      ends[i] = ends[i].trim();
+      nodes[i] = pathNodeOf( g, ends[i] );
+
+      if ( nodes[i] == -1 )
+        return "{\"error\": \"Not a named class: " + escapeJSON( fmaTerm( ends[i] ) ) + "\"}";
+    }
+
+    int[] path = g.shortestPath( nodes[0], nodes[1] );
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n \"from\": \"" ).append( escapeJSON( fmaTerm( ends[0] ) ) ).append( "\",\n \"to\": \"" ).append( escapeJSON( fmaTerm( ends[1] ) ) ).append( "\",\n" );
+    sb.append( " \"length\": " ).append( path == null ? "null" : String.valueOf( path.length / 2 ) ).append( ",\n \"path\":\n [" );
+
+    for ( int i = 0; path != null && i < path.length; i += 2 )
+    {
+      OWLEntity e = g.tx.representative( path[i] );
+      String label = labelByClass( e );
+
+      sb.append( i == 0 ? "\n  {" : ",\n  {" ).append( "\"term\": \"" ).append( fmaTerm( shortformProvider.shortUrlOf( e ) ) ).append( "\"" );
+
+      if ( label != null )
+        sb.append( ", \"label\": \"" ).append( escapeJSON( label ) ).append( "\"" );
+
+      if ( i > 0 )
+        sb.append( ", \"edge\": \"" ).append( escapeJSON( g.edgeName( path[i-1] ) ) ).append( "\", \"reversed\": " ).append( g.isReversed( path[i-1] ) );
+
+      sb.append( "}" );
+    }
+
+    sb.append( path == null || path.length == 0 ? "]\n}" : "\n ]\n}" );
+
+    return sb.toString();
+  }
+
+  /*
+   * Find the part-of links /shortestpath follows, from the same existential restrictions
+   * that generate-triples writes out: each "C SubClassOf P some D" gives a link from C to D
+   */
+  public PathGraph.Links collectPathLinks( String edges )
+  {
+    PathGraph.Links links = new PathGraph.Links();
+    Map<OWLObjectProperty,Integer> kinds = new HashMap<OWLObjectProperty,Integer>();
+
+    for ( String edge : edges.split(",") )
+    {
+      edge = edge.trim();
+
+      if ( edge.equals("subclass") )
+      {
+        links.subclass = true;
+        continue;
+      }
+
+      boolean found = false;
+
+      if ( edge.contains("://") )
+      {
+        kinds.put( df.getOWLObjectProperty( IRI.create( edge ) ), links.names.size() );
+        links.names.add( edge );
+        continue;
+      }
+
+      for ( OWLEntity e : shortformProvider.getEntities( edge ) )
+      {
+        if ( e.isOWLObjectProperty() )
+        {
+          kinds.put( e.asOWLObjectProperty(), links.names.size() );
+          found = true;
+        }
+      }
+
+      if ( found )
+        links.names.add( edge );
+      else
+        logString( "Note: no object property "+edge+" for shortest paths to follow" );
+    }
+
+    if ( kinds.isEmpty() )
+      return links;
+
+    for ( OWLOntology ont : importClosure )
+    {
+      for ( OWLSubClassOfAxiom ax : ont.getAxioms( AxiomType.SUBCLASS_OF ) )
+      {
+        if ( ax.getSubClass().isAnonymous() || !( ax.getSuperClass() instanceof OWLObjectSomeValuesFrom ) )
+          continue;
+
+        OWLObjectSomeValuesFrom restrict = (OWLObjectSomeValuesFrom) ax.getSuperClass();
+
+        if ( restrict.getProperty().isAnonymous() || restrict.getFiller().isAnonymous() )
+          continue;
+
+        Integer kind = kinds.get( restrict.getProperty().asOWLObjectProperty() );
+
+        if ( kind == null )
+          continue;
+
+        int from = shortformProvider.idOf( ax.getSubClass().asOWLClass() ), to = shortformProvider.idOf( restrict.getFiller().asOWLClass() );
+
+        if ( from != -1 && to != -1 )
+          links.add( from, to, kind );
+      }
+    }
+
+    return links;
+  }
+
+  public String computeGenerateTriplesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
+  {
+    OWLReasoner r = reasoner;
+    java.io.PrintWriter writer;
+
+    try
+    {
+      writer = new java.io.PrintWriter( "triples.nt", "UTF-8" );
+    }
+    catch( Exception e )
+    {
+      return "{ \"error\": \"Could not open triples.nt for writing\" }";
+    }
+
+    for ( OWLOntology ont : importClosure )
+    {
+      Set<OWLClass> classes = ont.getClassesInSignature();
+
+      for ( OWLClass c : classes )
+      {
+        NodeSet<OWLClass> subClasses = subClassesOf( r, c, true );
+        String cString = c.toStringID();
+
+        Set<OWLIndividual> inds = c.getIndividuals(ont);
+
+        for ( OWLIndividual ind : inds )
+        {
+          if ( !(ind instanceof OWLNamedIndividual) )
+            continue;
+
+          String iString = ind.asOWLNamedIndividual().getIRI().toString();
+
+          if ( iString.equals("") )
+            continue;
+
+          writer.println( "<" + iString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
+
+          if ( !cString.equals("") )
+            writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
+        }
+
+        if ( cString.equals("") )
+          continue;
+
+        writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
+
+        for ( Node<OWLClass> subnode : subClasses )
+        {
+          OWLClass sub = subnode.getEntities().iterator().next();
+
+          if ( sub.isOWLNothing() )
+            continue;
+
+          writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + sub.toStringID() + "> ." );
+        }
+
+        Set<OWLClassExpression> supers = c.getSuperClasses(ont);
+        for ( OWLClassExpression exp : supers )
+        {
+          if ( !(exp instanceof OWLObjectSomeValuesFrom) )
+            continue;
+
+          OWLRestriction restrict = (OWLRestriction) exp;
+
+          Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
+          boolean fBad = false;
+
+          for ( OWLObjectProperty objPropery : objProperties )
+          {
+            if ( !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#regional_part_of" )
+            &&   !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#constitutional_part_of" ) )
+            {
+              fBad = true;
+              break;
+            }
+          }
+          if ( fBad )
+            continue;
+
+          Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
+
+          for ( OWLClass classInSignature : classesInSignature )
+          {
+            writer.println( "<" + classInSignature.toStringID() + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
+            break;
+          }
+        }
+      }
+    }
+
+    writer.close();
+
+    return "{ \"result\": \"Triples saved to file triples.nt in owlkb directory\" }";
+  }
+
+  public String computeSubhierarchyResponse( OWLClassExpression exp, OWLReasoner r, HierarchyLimits limits ) throws java.io.IOException
+  {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append( "{\n" );
+    appendSubhierarchy( sb, exp, r, 1, limits );
+    sb.append( "\n}" );
+
+    return sb.toString();
+  }
+
+  /*
+   * Limits on /subhierarchy output: ?depth=<levels below the root>, ?maxnodes=<terms in the
+   * whole response> (default 100000), and ?ref to print a class that appears under several
+   * parents in full only once, with {"term": ..., "$ref": ...} stubs elsewhere
+   */
+  static class HierarchyLimits
+  {
+    int depth = Integer.MAX_VALUE;
+    int nodes = 100000;
+    boolean refs;
+
+    /*
+     * Returns null if a limit is malformed
+     */
+    public static HierarchyLimits parse( Map<String,String> args )
+    {
+      HierarchyLimits x = new HierarchyLimits();
+
+      try
+      {
+        if ( args.containsKey("depth") )
+          x.depth = Integer.parseInt( args.get("depth") );
+
+        if ( args.containsKey("maxnodes") )
+          x.nodes = Integer.parseInt( args.get("maxnodes") );
+      }
+      catch( NumberFormatException e )
+      {
+        return null;
+      }
+
+      x.refs = args.containsKey("ref");
+
+      return ( x.depth < 1 || x.nodes < 1 ) ? null : x;
+    }
+  }
+
+  /*
+   * A class whose subclasses are being written out, and which of them is next
+   */
+  static class HierarchyFrame
+  {
+    List<OWLClass> kids;
+    int next, indent, depth;
+
+    public HierarchyFrame( List<OWLClass> kids, int indent, int depth )
+    {
+      this.kids = kids;
+      this.indent = indent;
+      this.depth = depth;
+    }
+  }
+
+  /*
+   * The hierarchy is walked with an explicit stack rather than recursion, children come from
+   * the taxonomy snapshot where possible, and the walk stops at the depth and node limits;
+   * classes left unexpanded because of the depth limit are marked "truncated", as is the whole
+   * response if the node limit was reached.
+   */
+  public void appendSubhierarchy( Appendable sb, OWLClassExpression exp, OWLReasoner r, int indent, HierarchyLimits limits ) throws java.io.IOException
+  {
+    ArrayDeque<HierarchyFrame> stack = new ArrayDeque<HierarchyFrame>();
+    Set<OWLClass> written = limits.refs ? new HashSet<OWLClass>() : null;
+    int emitted = 0;
+    boolean truncated = false;
+
+    appendSpaces( sb, indent );
+    sb.append( "\"subterms\":\n" );
+    appendSpaces( sb, indent );
+    sb.append( "[\n" );
+
+    stack.push( new HierarchyFrame( hierarchyChildren( exp, r ), indent, 1 ) );
+
+    while ( !stack.isEmpty() )
+    {
+      HierarchyFrame f = stack.peek();
+
+      if ( f.next < f.kids.size() && emitted >= limits.nodes )
+        truncated = true;
+
+      if ( f.next == f.kids.size() || truncated )
+      {
+        sb.append( "\n" );
+        appendSpaces( sb, f.indent );
+        sb.append( "]" );
+        stack.pop();
+
+        if ( !stack.isEmpty() )
+        {
+          sb.append( "\n" );
+          appendSpaces( sb, f.indent - 1 );
+          sb.append( "}" );
+        }
+        continue;
+      }
+
+      OWLClass c = f.kids.get( f.next++ );
+      emitted++;
+
+      if ( f.next > 1 )
+        sb.append( ",\n" );
+
+      appendSpaces( sb, f.indent + 1 );
+      sb.append( "{\n" );
+      appendSpaces( sb, f.indent + 2 );
+      sb.append( "\"term\": \"" ).append( shortformProvider.shortUrlOf(c) ).append( "\",\n" );
+
+      String label = labelByClass( c );
+      if ( label != null )
+      {
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "\"label\": \"" ).append( escapeJSON(label) ).append( "\",\n" );
+      }
+
+      List<OWLClass> kids = hierarchyChildren( c, r );
+
+      /*
+       * A class only counts as written once it has been expanded, so one cut off by the depth
+       * limit here is still written in full where it turns up higher up
+       */
+      if ( !kids.isEmpty() && f.depth >= limits.depth )
+      {
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "\"truncated\": true,\n" );
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "\"subterms\": []\n" );
+      }
+      else if ( !kids.isEmpty() && written != null && !written.add( c ) )
+      {
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "\"$ref\": \"" ).append( shortformProvider.shortUrlOf(c) ).append( "\"\n" );
+      }
+      else
+      {
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "\"subterms\":\n" );
+        appendSpaces( sb, f.indent + 2 );
+        sb.append( "[\n" );
+        stack.push( new HierarchyFrame( kids, f.indent + 2, f.depth + 1 ) );
+        continue;
+      }
+
+      appendSpaces( sb, f.indent + 1 );
+      sb.append( "}" );
+    }
+
+    if ( truncated )
+    {
+      sb.append( ",\n" );
+      appendSpaces( sb, indent );
+      sb.append( "\"truncated\": true" );
+    }
+  }
+
+  /*
+   * Direct subclasses of a class (except owl:Nothing), in IRI order
+   */
+  public List<OWLClass> hierarchyChildren( OWLClassExpression exp, OWLReasoner r )
+  {
+    List<OWLClass> kids = new ArrayList<OWLClass>();
+    Taxonomy tx = taxonomy;
+    int node = ( tx == null ) ? -1 : tx.nodeOf( exp );
+
+    if ( node != -1 )
+    {
+      for ( int child : tx.children( node ) )
+      {
+        OWLClass c = tx.representative( child ).asOWLClass();
+
+        if ( !c.isOWLNothing() )
+          kids.add( c );
+      }
+
+      return kids;
+    }
+
+    for ( Node<OWLClass> n : subClassesOf( r, exp, true ) )
+    {
+      if ( !n.isBottomNode() )
+        kids.add( n.getRepresentativeElement() );
+    }
+
+    sortByIri( kids );
+
+    return kids;
+  }
+
+  static final String SPACES = "                                                                ";
+
+  public void appendSpaces( Appendable sb, int n ) throws java.io.IOException
+  {
+    for ( ; n > SPACES.length(); n -= SPACES.length() )
+      sb.append( SPACES );
+
+    sb.append( SPACES, 0, n );
+  }
+
+  public String computeApinatomyResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
+  {
+    String response = "[\n";
+    boolean isFirstResult = true;
+
+    req = req.replace("fma:", "FMA_");
+
+    List<String> shortforms = java.util.Arrays.asList(req.split(","));
+
+    /*
+     * Max size chosen based on FMA's most prolific class, FMA_21792 ("Fascia of muscle"), which has 222 subs
+     */
+    if ( shortforms.size() > 250 )
+      return "[]";
+
+    if ( req.substring(0,6).equals( "24tile" ) )
+    {
+      String top24 = readFile("24tiles.dat");
+
+      return (top24 != null) ? top24 : "[]";
+    }
+
+    if ( req.equals("pkpd_base") )
+    {
+      String topTiles = readFile("pkpdroot.dat");
+
+      return (topTiles != null) ? topTiles : "[]";
+    }
+
+    for ( String shortform : shortforms )
+    {
+      OWLEntity e = shortformProvider.getEntity(shortform);
+
+      if ( e == null || (!e.isOWLClass() && !e.isOWLNamedIndividual() ) )
+        continue;
+
+      if ( isFirstResult )
+        isFirstResult = false;
+      else
+        response += ",\n";
+
+      response += "  {\n    \"_id\": \"" + escapeJSON(shortform) + "\",\n";
+
+      String theLabel = getOneRdfsLabel( e, o );
+
+      if ( theLabel == null )
+        theLabel = shortform;
+
+      response += "    \"name\": \"" + escapeJSON(theLabel) + "\",\n";
+
+      int count = snapshotDescendantCount( e );
+
+      if ( count != -1 )
+        response += "    \"descendantCount\": " + count + ",\n";
+
+      response += "    \"sub\":\n    [\n";
+
+      if ( e.isOWLClass() )
+      {
+        List<ApinatomySub> subs = getApinatomySubs(e, reasoner, o);
+        boolean isFirstSub = true;
+
+        for ( ApinatomySub sub : subs )
+        {
+          if ( isFirstSub )
+            isFirstSub = false;
+          else
+            response += ",\n";
+
+          response += "      {\n        \"type\": \"" + escapeJSON(sub.type) + "\",\n";
+          response += "        \"entity\":\n        {\n          \"_id\": \"" + escapeJSON(sub.id) + "\"\n        }\n      }";
+        }
+      }
+
+      response += "\n    ]\n  }";
+    }
+
+    response = response.replace( "FMA_", "fma:" );
+
+    response += "\n]";
+
+    return response;
+  }
+
+  public String queryURL(String urlString)
+  {
+    StringBuilder buf = null;
+    java.io.Reader r = null;
+
+    try
+    {
+      java.net.URL url = new java.net.URL(urlString);
+      java.net.URLConnection con = url.openConnection();
+
+      /*
+       * To do: Make these values configurable
+       */
+      con.setConnectTimeout( 1000 );
+      con.setReadTimeout( 1000 );
+
+      r = new java.io.InputStreamReader(con.getInputStream(), "UTF-8");
+      buf = new StringBuilder();
+
+      while (true)
+      {
+        int ch = r.read();
+        if (ch < 0)
+          break;
+        buf.append((char) ch);
+      }
+      return buf.toString();
+    }
+    catch(Exception e)
+    {
+      return null;
+    }
+  }
+
+  public String queryFeather( String command, String x )
+  {
+    return queryURL("http://open-physiology.org:5053/"+command+"/"+x);
+  }
+
+  public List<ApinatomySub> getApinatomySubs( OWLEntity e, OWLReasoner r, OWLOntology o )
+  {
+    List<ApinatomySub> response = new ArrayList<ApinatomySub>();
+
+    if ( !( e instanceof OWLClass ) )
+      return response;
+
+    OWLClass c = e.asOWLClass();
+
+    ArrayList<String> subclassList = getSubTerms(c, r, false, true, false, false);
+
+    for ( String subclass : subclassList )
+    {
+      String theID = shortUrl( subclass );
+
+      if ( !theID.equals( "Nothing" ) )
+        response.add( new ApinatomySub( theID, "subclass" ) );
+    }
+
+    for ( OWLOntology imp : importClosure )
+    {
+      Set<OWLClassExpression> supers = c.getSuperClasses(imp);
+
+      for ( OWLClassExpression exp : supers )
+      {
+        if ( !( exp instanceof OWLObjectSomeValuesFrom ) )
+          continue;
+
+        String type = null;
+        OWLRestriction restrict = (OWLRestriction) exp;
+        Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
+
+        for ( OWLObjectProperty objPropery : objProperties )
+        {
+          String objPropertyShort = shortUrl( objPropery.toStringID() );
+
+          if ( objPropertyShort.equals( "regional_part" ) )
+            type = "regional part";
+          else
+          if ( objPropertyShort.equals( "constitutional_part" ) )
+            type = "constitutional part";
+
+          break;
+        }
+
+        if ( type == null )
+          continue;
+
+        Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
+        for ( OWLClass classInSignature : classesInSignature )
+        {
+          response.add( new ApinatomySub( shortUrl(classInSignature.toStringID()), type ) );
+          break;
+        }
+      }
+
+      Set<OWLIndividual> inds = c.getIndividuals(imp);
+
+      for ( OWLIndividual ind : inds )
+      {
+        if ( !(ind instanceof OWLNamedIndividual) )
+          continue;
+
+        response.add( new ApinatomySub( shortUrl( ind.asOWLNamedIndividual().getIRI().toString() ), "subclass" ) );
+      }
+    }
+
+    return response;
+  }
+
+  class ApinatomySub
+  {
+    public String id;
+    public String type;
+
+    public ApinatomySub(String id, String type)
+    {
+      this.id = id;
+      this.type = type;
+    }
+  }
+
+  public String getOneRdfsLabel( OWLEntity e, OWLOntology o )
+  {
+    return labelIndex.primaryLabel( e.getIRI() );
+  }
+
+  /*
+   * Case-fold, strip accents and punctuation, and collapse whitespace:
+   * "Left  Ventricle (heart)" becomes "left ventricle heart"
+   */
+  static String normalizeLabel( String label )
+  {
+    String decomposed = java.text.Normalizer.normalize( label, java.text.Normalizer.Form.NFD );
+    StringBuilder sb = new StringBuilder( decomposed.length() );
+    boolean space = true;
+
+    for ( int i = 0; i < decomposed.length(); i++ )
+    {
+      char c = decomposed.charAt( i );
+
+      if ( Character.isLetterOrDigit( c ) )
+      {
+        sb.append( Character.toLowerCase( c ) );
+        space = false;
+      }
+      else if ( Character.getType( c ) != Character.NON_SPACING_MARK && !space )
+      {
+        sb.append( ' ' );
+        space = true;
+      }
+    }
+
+    if ( space && sb.length() > 0 )
+      sb.setLength( sb.length() - 1 );
+
+    return sb.toString();
+  }
+
+  /*
+   * Index of rdfs:labels, built once at startup.  An entity's labels are the ones from the
+   * main ontology if it has any there, otherwise the ones from the first ontology in the
+   * imports closure that labels it.  Lookups are lock-free; addLabel refreshes the entity
+   * it changed.
+   */
+  class LabelIndex
+  {
+    OWLOntology main;
+    ConcurrentHashMap<IRI,String[]> labels;
+    ConcurrentSkipListMap<String,IRI> sorted;  // Lowercased label + "\0" + IRI, for prefix searches
+
+    /*
+     * Fuzzy search: every label is also stored normalized (see normalizeLabel), and indexed by
+     * the trigrams of its normalized form.  Labels are numbered by their position in
+     * fuzzyEntries; replaced labels are marked dead rather than removed from the postings.
+     * Guarded by kbLock, like the ontology itself.
+     */
+    ArrayList<FuzzyEntry> fuzzyEntries;
+    HashMap<String,IntList> trigramPostings;
+    HashMap<String,IntList> byNormalized;
+    HashMap<IRI,IntList> entriesOf;
+    BlockingQueue<int[][]> fuzzyScratch;  // Idle shared-trigram counters, indexed by entry; at most one per worker thread
+
+    public LabelIndex( OWLOntology main )
+    {
+      this.main = main;
+      this.labels = new ConcurrentHashMap<IRI,String[]>();
+      this.sorted = new ConcurrentSkipListMap<String,IRI>();
+      this.fuzzyEntries = new ArrayList<FuzzyEntry>();
+      this.trigramPostings = new HashMap<String,IntList>();
+      this.byNormalized = new HashMap<String,IntList>();
+      this.entriesOf = new HashMap<IRI,IntList>();
+      this.fuzzyScratch = new ArrayBlockingQueue<int[][]>( threads );
+
+      indexOntology( main );
+
+      for ( OWLOntology imp : importClosure )
+      {
+        if ( imp != main )
+          indexOntology( imp );
+      }
+    }
+
+    /*
+     * Add the labels of entities not already labelled by an earlier ontology
+     */
+    void indexOntology( OWLOntology o )
+    {
+      Map<IRI,List<String>> found = new HashMap<IRI,List<String>>();
+
+      for ( OWLAnnotationAssertionAxiom ax : o.getAxioms( AxiomType.ANNOTATION_ASSERTION ) )
+      {
+        if ( !ax.getProperty().equals( rdfsLabel ) || !(ax.getSubject() instanceof IRI) || !(ax.getValue() instanceof OWLLiteral) )
+          continue;
+
+        IRI subject = (IRI)ax.getSubject();
+
+        if ( labels.containsKey( subject ) )
+          continue;
+
+        List<String> list = found.get( subject );
+
+        if ( list == null )
+        {
+          list = new ArrayList<String>( 1 );
+          found.put( subject, list );
+        }
+
+        list.add( ((OWLLiteral)ax.getValue()).getLiteral() );
+      }
+
+      for ( Map.Entry<IRI,List<String>> e : found.entrySet() )
+        put( e.getKey(), e.getValue().toArray( new String[e.getValue().size()] ) );
+    }
+
+    void put( IRI iri, String[] x )
+    {
+      String[] old = ( x == null ) ? labels.remove( iri ) : labels.put( iri, x );
+
+      if ( old != null )
+      {
+        for ( String label : old )
+          sorted.remove( sortKey( label, iri ) );
+
+        IntList ids = entriesOf.remove( iri );
+        for ( int i = 0; ids != null && i < ids.size; i++ )
+          fuzzyEntries.get( ids.data[i] ).live = false;
+      }
+
+      if ( x != null )
+      {
+        for ( String label : x )
+        {
+          sorted.put( sortKey( label, iri ), iri );
+          addFuzzyEntry( iri, label );
+        }
+      }
+    }
+
+    void addFuzzyEntry( IRI iri, String label )
+    {
+      String normalized = normalizeLabel( label );
+
+      if ( normalized.equals("") )
+        return;
+
+      int id = fuzzyEntries.size();
+      Set<String> grams = trigrams( normalized );
+
+      fuzzyEntries.add( new FuzzyEntry( iri, label, grams.size() ) );
+
+      for ( String gram : grams )
+        IntList.addTo( trigramPostings, gram, id );
+
+      IntList.addTo( byNormalized, normalized, id );
+      IntList.addTo( entriesOf, iri, id );
+    }
+
+    /*
+     * Entities with exactly the given label
+     */
+    public Set<IRI> searchExact( String label )
+    {
+      Set<IRI> results = new LinkedHashSet<IRI>();
+      String lower = label.toLowerCase() + "\0";
+
+      for ( Map.Entry<String,IRI> e : sorted.tailMap( lower ).entrySet() )
+      {
+        if ( !e.getKey().startsWith( lower ) )
+          break;
+
+        String[] x = labels.get( e.getValue() );
+
+        if ( x != null && Arrays.asList( x ).contains( label ) )
+          results.add( e.getValue() );
+      }
+
+      return results;
+    }
+
+    /*
+     * Entities whose label equals the given one up to case, whitespace and punctuation
+     */
+    public Set<IRI> searchNormalized( String label )
+    {
+      Set<IRI> results = new LinkedHashSet<IRI>();
+      IntList ids = byNormalized.get( normalizeLabel( label ) );
+
+      for ( int i = 0; ids != null && i < ids.size; i++ )
+      {
+        FuzzyEntry e = fuzzyEntries.get( ids.data[i] );
+
+        if ( e.live )
+          results.add( e.iri );
+      }
+
+      return results;
+    }
+
+    /*
+     * Up to k entities with a label similar to the given text, best first.  Similarity is
+     * the Dice coefficient of the normalized labels' trigram sets, and entities scoring
+     * below minScore are left out.
+     */
+    public List<LabelMatch> fuzzySearch( String text, int k, double minScore )
+    {
+      String normalized = normalizeLabel( text );
+      List<LabelMatch> results = new ArrayList<LabelMatch>();
+
+      if ( normalized.equals("") )
+        return results;
+
+      Set<String> grams = trigrams( normalized );
+      int[][] scratch = fuzzyScratch.poll();
+
+      if ( scratch == null || scratch[0].length < fuzzyEntries.size() )
+        scratch = new int[][] { new int[fuzzyEntries.size() + 1024], new int[fuzzyEntries.size() + 1024] };
+
+      /*
+       * Scoring leaves the counters zeroed again, so the arrays go back to the pool afterwards
+       * (unless it is full).  If scoring fails they are dropped instead.
+       */
+      results = fuzzySearch( grams, k, minScore, scratch );
+      fuzzyScratch.offer( scratch );
+
+      return results;
+    }
+
+    /*
+     * Score the entries sharing trigrams with grams, using scratch (two zeroed arrays at least
+     * as long as fuzzyEntries) for the counters, and leave scratch zeroed again
+     */
+    List<LabelMatch> fuzzySearch( Set<String> grams, int k, double minScore, int[][] scratch )
+    {
+      List<LabelMatch> results = new ArrayList<LabelMatch>();
+      int[] shared = scratch[0];
+      int[] touched = scratch[1];
+      int nTouched = 0;
+
+      for ( String gram : grams )
+      {
+        IntList ids = trigramPostings.get( gram );
+
+        for ( int i = 0; ids != null && i < ids.size; i++ )
+        {
+          int id = ids.data[i];
+
+          if ( shared[id]++ == 0 )
+            touched[nTouched++] = id;
+        }
+      }
+
+      Map<IRI,LabelMatch> best = new HashMap<IRI,LabelMatch>();
+
+      for ( int i = 0; i < nTouched; i++ )
+      {
+        int id = touched[i];
+        FuzzyEntry e = fuzzyEntries.get( id );
+        double score = 2.0 * shared[id] / ( grams.size() + e.grams );
+
+        shared[id] = 0;
+
+        if ( !e.live || score < minScore )
+          continue;
+
+        LabelMatch prev = best.get( e.iri );
+
+        if ( prev == null || prev.score < score )
+          best.put( e.iri, new LabelMatch( e.iri, e.label, score ) );
+      }
+
+      results.addAll( best.values() );
+
+      Collections.sort( results, new Comparator<LabelMatch>()
+      {
+        public int compare( LabelMatch a, LabelMatch b )
+        {
+          if ( a.score != b.score )
+            return a.score > b.score ? -1 : 1;
+
+          return a.label.compareToIgnoreCase( b.label );
+        }
+      });
+
+      return results.size() > k ? new ArrayList<LabelMatch>( results.subList( 0, k ) ) : results;
+    }
+
+    Set<String> trigrams( String normalized )
+    {
+      String padded = " " + normalized + " ";
+      Set<String> grams = new HashSet<String>();
+
+      for ( int i = 0; i + 3 <= padded.length(); i++ )
+        grams.add( padded.substring( i, i + 3 ) );
+
+      return grams;
+    }
+
+    String sortKey( String label, IRI iri )
+    {
+      return label.toLowerCase() + "\0" + iri.toString();
+    }
+
+    /*
+     * Up to k entities with a label starting with the given prefix (case-insensitively), in
+     * label order, each with the label that matched.  If within is non-null, only entities it
+     * accepts are returned.
+     */
+    public List<LabelMatch> complete( String prefix, int k, SubclassFilter within )
+    {
+      List<LabelMatch> results = new ArrayList<LabelMatch>();
+      Set<IRI> seen = new HashSet<IRI>();
+      String lower = prefix.toLowerCase();
+
+      for ( Map.Entry<String,IRI> e : sorted.tailMap( lower ).entrySet() )
+      {
+        if ( results.size() >= k || !e.getKey().startsWith( lower ) )
+          break;
+
+        IRI iri = e.getValue();
+
+        if ( (within != null && !within.accepts( iri )) || !seen.add( iri ) )
+          continue;
+
+        String key = e.getKey();
+        String[] x = labels.get( iri );
+        String label = key.substring( 0, key.lastIndexOf( '\0' ) );
+
+        if ( x != null )
+        {
+          for ( String candidate : x )
+          {
+            if ( candidate.toLowerCase().equals( label ) )
+            {
+              label = candidate;
+              break;
+            }
+          }
+        }
+
+        results.add( new LabelMatch( iri, label, 1 ) );
+      }
+
+      return results;
+    }
+
+    public String[] labels( IRI iri )
+    {
+      return labels.get( iri );
+    }
+
+    public String primaryLabel( IRI iri )
+    {
+      String[] x = labels.get( iri );
+
+      return x == null ? null : x[0];
+    }
+
+    /*
+     * Re-read one entity's labels after the ontology has changed.  Called on the writer lane.
+     */
+    public void refresh( OWLEntity e )
+    {
+      String[] x = readLabels( e, main );
+
+      if ( x == null )
+      {
+        for ( OWLOntology imp : importClosure )
+        {
+          if ( imp != main && (x = readLabels( e, imp )) != null )
+            break;
+        }
+      }
+
+      put( e.getIRI(), x );
+    }
+
+    String[] readLabels( OWLEntity e, OWLOntology o )
+    {
+      List<String> list = new ArrayList<String>();
+
+      for ( OWLAnnotation a : e.getAnnotations( o, rdfsLabel ) )
+      {
+        if ( a.getValue() instanceof OWLLiteral )
+          list.add( ((OWLLiteral)a.getValue()).getLiteral() );
+      }
+
+      return list.isEmpty() ? null : list.toArray( new String[list.size()] );
+    }
+
+    public int size()
+    {
+      return labels.size();
+    }
+  }
+
+  /*
+   * Numbers every entity in the imports closure, and keeps its IRI and short forms as
+   * interned strings, so lookups by short form or IRI and the rendering of result rows
+   * don't allocate.  The lookup tables are open-addressed int arrays holding id+1 (0 for
+   * an empty slot) rather than maps of boxed entries.  Entities added to the ontology are
+   * numbered as the changes are applied (on the writer lane, under the write lock).
+   *
+   * Lookups don't need kbLock (streamed responses render rows without it).  Arrays are
+   * replaced rather than changed when they grow, a new entry is published by the volatile
+   * write to size before it is put in the lookup tables, and lookups skip ids not below size.
+   */
+  static class EntityDictionary implements BidirectionalShortFormProvider, OWLOntologyChangeListener
+  {
+    static final SimpleShortFormProvider simpleShortForms = new SimpleShortFormProvider();
+
+    volatile OWLEntity[] entities;
+    volatile String[] iris;       // Full IRIs
+    volatile String[] names;      // Short forms, as the Manchester parser looks them up (e.g. "PATO_0000014")
+    volatile String[] shortUrls;  // Short forms as rendered in responses (see shortUrl); usually the same strings as names
+    volatile int size;
+
+    volatile int[] byName;        // Indexed by hash of the short form
+    volatile int[] byIri;         // Indexed by hash of the IRI object
+    volatile int[] byIriString;   // Indexed by hash of the IRI string
+
+    public EntityDictionary( Set<OWLOntology> ontologies )
+    {
+      entities = new OWLEntity[1024];
+      iris = new String[1024];
+      names = new String[1024];
+      shortUrls = new String[1024];
+      byName = new int[2048];
+      byIri = new int[2048];
+      byIriString = new int[2048];
+
+      for ( OWLOntology o : ontologies )
+      {
+        for ( OWLEntity e : o.getSignature() )
+          add( e );
+      }
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    /*
+     * Number the entity, if it isn't already, and return its id
+     */
+    public int add( OWLEntity e )
+    {
+      int id = idOf( e );
+
+      if ( id != -1 )
+        return id;
+
+      if ( size == entities.length )
+      {
+        entities = Arrays.copyOf( entities, size * 2 );
+        iris = Arrays.copyOf( iris, size * 2 );
+        names = Arrays.copyOf( names, size * 2 );
+        shortUrls = Arrays.copyOf( shortUrls, size * 2 );
+      }
+
+      id = size;
+
+      String iri = e.getIRI().toString().intern();
+      String name = simpleShortForms.getShortForm( e ).intern();
+      String url = shortUrl( iri );
+
+      entities[id] = e;
+      iris[id] = iri;
+      names[id] = name;
+      shortUrls[id] = url.equals( name ) ? name : url.intern();
+
+      size = id + 1;
+
+      if ( size * 2 > byName.length )
+        rehash( byName.length * 2 );
+      else
+      {
+        insert( byName, name.hashCode(), id );
+        insert( byIri, e.getIRI().hashCode(), id );
+        insert( byIriString, iri.hashCode(), id );
+      }
+
+      return id;
+    }
+
+    void rehash( int capacity )
+    {
+      int[] newByName = new int[capacity], newByIri = new int[capacity], newByIriString = new int[capacity];
+
+      for ( int id = 0; id < size; id++ )
+      {
+        insert( newByName, names[id].hashCode(), id );
+        insert( newByIri, entities[id].getIRI().hashCode(), id );
+        insert( newByIriString, iris[id].hashCode(), id );
+      }
+
+      byName = newByName;
+      byIri = newByIri;
+      byIriString = newByIriString;
+    }
+
+    static int slot( int[] table, int hash )
+    {
+      return ( hash ^ (hash >>> 16) ) & (table.length - 1);
+    }
+
+    static void insert( int[] table, int hash, int id )
+    {
+      int i = slot( table, hash );
+
+      while ( table[i] != 0 )
+        i = (i + 1) & (table.length - 1);
+
+      table[i] = id + 1;
+    }
+
+    public int idOf( OWLEntity e )
+    {
+      int[] table = byIri;
+
+      for ( int i = slot( table, e.getIRI().hashCode() ); table[i] != 0; i = (i + 1) & (table.length - 1) )
+      {
+        int id = table[i] - 1;
+
+        if ( id < size && entities[id].equals( e ) )
+          return id;
+      }
+
+      return -1;
+    }
+
+    public int idOfIri( String iri )
+    {
+      int[] table = byIriString;
+
+      for ( int i = slot( table, iri.hashCode() ); table[i] != 0; i = (i + 1) & (table.length - 1) )
+      {
+        int id = table[i] - 1;
+
+        if ( id < size && iris[id].equals( iri ) )
+          return id;
+      }
+
+      return -1;
+    }
+
+    public OWLEntity entity( int id )
+    {
+      return entities[id];
+    }
+
+    /*
+     * The entity's full IRI, without building a new string for it
+     */
+    public String iriString( OWLEntity e )
+    {
+      int id = idOf( e );
+
+      return id == -1 ? e.getIRI().toString() : iris[id];
+    }
+
+    /*
+     * Same as shortUrl, without building a new string for numbered entities
+     */
+    public String shortUrlOf( String iri )
+    {
+      int id = idOfIri( iri );
+
+      return id == -1 ? shortUrl( iri ) : shortUrls[id];
+    }
+
+    public String shortUrlOf( OWLEntity e )
+    {
+      int id = idOf( e );
+
+      return id == -1 ? shortUrl( e.getIRI().toString() ) : shortUrls[id];
+    }
+
+    public Set<OWLEntity> getEntities( String shortForm )
+    {
+      Set<OWLEntity> results = new HashSet<OWLEntity>();
+      int[] table = byName;
+
+      for ( int i = slot( table, shortForm.hashCode() ); table[i] != 0; i = (i + 1) & (table.length - 1) )
+      {
+        int id = table[i] - 1;
+
+        if ( id < size && names[id].equals( shortForm ) )
+          results.add( entities[id] );
+      }
+
+      return results;
+    }
+
+    public OWLEntity getEntity( String shortForm )
+    {
+      int[] table = byName;
+
+      for ( int i = slot( table, shortForm.hashCode() ); table[i] != 0; i = (i + 1) & (table.length - 1) )
+      {
+        int id = table[i] - 1;
+
+        if ( id < size && names[id].equals( shortForm ) )
+          return entities[id];
+      }
+
+      return null;
+    }
+
+    public Set<String> getShortForms()
+    {
+      int n = size;
+
+      return new HashSet<String>( Arrays.asList( names ).subList( 0, n ) );
+    }
+
+    public String getShortForm( OWLEntity e )
+    {
+      int id = idOf( e );
+
+      return id == -1 ? simpleShortForms.getShortForm( e ) : names[id];
+    }
+
+    public void dispose()
+    {
+    }
+
+    /*
+     * Number the entities that ontology changes (e.g. new RICORDO classes) bring in
+     */
+    public void ontologiesChanged( List<? extends OWLOntologyChange> changes )
+    {
+      for ( OWLOntologyChange change : changes )
+      {
+        if ( change.isAddAxiom() )
+        {
+          for ( OWLEntity e : change.getAxiom().getSignature() )
+            add( e );
+        }
+      }
+    }
+  }
+
+  /*
+   * Inverted index over the literal values of annotation properties (labels, synonyms,
+   * definitions, ...) in the imports closure, for ranked multi-word search.  Documents are
+   * entities, numbered as in the entity dictionary; words are normalized as labels are.
+   * Label words count double.  Values added later (by addLabel) are appended to the
+   * postings, so a document can appear more than once in a word's postings; search adds
+   * such entries up before scoring.  Guarded by kbLock.
+   */
+  class FullTextIndex
+  {
+    Set<OWLAnnotationProperty> properties;  // null to index every annotation property
+    HashMap<String,Postings> postings;
+    float[] docLength;                       // Weighted number of words, by entity id
+    double totalLength;
+    int docs;                                // Number of entities with indexed words
+    BlockingQueue<FullTextScratch> scratch;  // Idle scoring arrays, at most one per worker thread
+
+    public FullTextIndex( String props )
+    {
+      postings = new HashMap<String,Postings>();
+      docLength = new float[shortformProvider.size() + 1024];
+      scratch = new ArrayBlockingQueue<FullTextScratch>( threads );
+
+      if ( !props.trim().equals("all") )
+      {
+        properties = new HashSet<OWLAnnotationProperty>();
+
+        for ( String prop : props.split(",") )
+        {
+          prop = prop.trim();
+
+          if ( prop.contains("://") )
+          {
+            properties.add( df.getOWLAnnotationProperty( IRI.create( prop ) ) );
+            continue;
+          }
+
+          boolean found = false;
+
+          for ( OWLEntity e : shortformProvider.getEntities( prop ) )
+          {
+            if ( e.isOWLAnnotationProperty() )
+            {
+              properties.add( e.asOWLAnnotationProperty() );
+              found = true;
+            }
+          }
+
+          if ( prop.equals("label") && !found )
+            properties.add( rdfsLabel );
+          else if ( !found )
+            logString( "Warning: no annotation property "+prop+" to index for full-text search" );
+        }
+      }
+
+      for ( OWLOntology o : importClosure )
+      {
+        for ( OWLAnnotationAssertionAxiom ax : o.getAxioms( AxiomType.ANNOTATION_ASSERTION ) )
+        {
+          if ( ax.getSubject() instanceof IRI && ax.getValue() instanceof OWLLiteral )
+            addText( (IRI)ax.getSubject(), ax.getProperty(), ((OWLLiteral)ax.getValue()).getLiteral() );
+        }
+      }
+    }
+
+    public int terms()
+    {
+      return postings.size();
+    }
+
+    public void addText( IRI subject, OWLAnnotationProperty prop, String text )
+    {
+      if ( properties != null && !properties.contains( prop ) )
+        return;
+
+      int doc = shortformProvider.idOfIri( subject.toString() );
+
+      if ( doc == -1 )
+        return;
+
+      if ( doc >= docLength.length )
+        docLength = Arrays.copyOf( docLength, Math.max( doc + 1, docLength.length * 2 ) );
+
+      float weight = prop.equals( rdfsLabel ) ? 2 : 1;
+      String normalized = normalizeLabel( text );
+
+      if ( normalized.equals("") )
+        return;
+
+      if ( docLength[doc] == 0 )
+        docs++;
+
+      for ( String word : normalized.split(" ") )
+      {
+        Postings list = postings.get( word );
+
+        if ( list == null )
+        {
+          list = new Postings();
+          postings.put( word, list );
+        }
+
+        list.add( doc, weight );
+        docLength[doc] += weight;
+        totalLength += weight;
+      }
+    }
 
-    int i;
-    String flag;
+    /*
+     * One page of the entities matching any of the words, best first (ties in IRI order).
+     * The number of matching entities is put in total[0].
+     */
+    public List<LabelMatch> search( String text, int offset, int limit, int[] total )
+    {
+      final double k1 = 1.2, b = 0.75;
+      List<LabelMatch> results = new ArrayList<LabelMatch>();
+      Set<String> words = new LinkedHashSet<String>( Arrays.asList( normalizeLabel( text ).split(" ") ) );
+      words.remove( "" );
 
-    for ( i = 0; i < args.length; i++ )
+      total[0] = 0;
+
+      if ( words.isEmpty() || docs == 0 )
+        return results;
+
+      FullTextScratch x = scratch.poll();
+
+      if ( x == null || x.tf.length < docLength.length )
+        x = new FullTextScratch( docLength.length );
+
+      double avgLength = totalLength / docs;
+      int nMatches = 0;
+
+      for ( String word : words )
+      {
+        Postings list = postings.get( word );
+
+        if ( list == null )
+          continue;
+
+        int nTouched = 0;
+
+        for ( int i = 0; i < list.size; i++ )
+        {
+          int doc = list.docs[i];
+
+          if ( x.tf[doc] == 0 )
+            x.touchedByWord[nTouched++] = doc;
+
+          x.tf[doc] += list.weights[i];
+        }
+
+        double idf = Math.log( 1 + (docs - nTouched + 0.5) / (nTouched + 0.5) );
+
+        for ( int i = 0; i < nTouched; i++ )
+        {
+          int doc = x.touchedByWord[i];
+          double tf = x.tf[doc];
+
+          if ( x.score[doc] == 0 )
+            x.matches[nMatches++] = doc;
+
+          x.score[doc] += idf * tf * (k1 + 1) / ( tf + k1 * (1 - b + b * docLength[doc] / avgLength) );
+          x.tf[doc] = 0;
+        }
+      }
+
+      total[0] = nMatches;
+
+      /*
+       * Keep the best offset+limit matches, then sort those
+       */
+      final float[] score = x.score;
+      final EntityDictionary dictionary = shortformProvider;
+      Comparator<Integer> worstFirst = new Comparator<Integer>()
+      {
+        public int compare( Integer a, Integer b )
+        {
+          if ( score[a] != score[b] )
+            return score[a] < score[b] ? -1 : 1;
+
+          return dictionary.iris[b].compareTo( dictionary.iris[a] );
+        }
+      };
+
+      int keep = offset + limit;
+      PriorityQueue<Integer> best = new PriorityQueue<Integer>( Math.min( keep, nMatches ) + 1, worstFirst );
+
+      for ( int i = 0; i < nMatches; i++ )
+      {
+        best.add( x.matches[i] );
+
+        if ( best.size() > keep )
+          best.poll();
+      }
+
+      List<Integer> page = new ArrayList<Integer>( best );
+      Collections.sort( page, Collections.reverseOrder( worstFirst ) );
+
+      for ( int i = offset; i < page.size(); i++ )
+      {
+        int doc = page.get(i);
+        IRI iri = shortformProvider.entity( doc ).getIRI();
+        String label = labelIndex.primaryLabel( iri );
+
+        results.add( new LabelMatch( iri, label == null ? "" : label, score[doc] ) );
+      }
+
+      /*
+       * The arrays are zeroed again, so they can go back to the pool (unless it is full).
+       * If scoring fails they are dropped instead.
+       */
+      for ( int i = 0; i < nMatches; i++ )
+        score[x.matches[i]] = 0;
+
+      scratch.offer( x );
+
+      return results;
+    }
+  }
+
+  static class FullTextScratch
+  {
+    float[] tf, score;
+    int[] touchedByWord, matches;
+
+    public FullTextScratch( int size )
     {
-      if ( args[i].length() > 2 && args[i].substring(0,2).equals("--") )
-        flag = args[i].substring(2).toLowerCase();
-      else if ( args[i].length() > 1 && args[i].substring(0,1).equals("-") )
-        flag = args[i].substring(1).toLowerCase();
-      else
-        flag = args[i].toLowerCase();
+      tf = new float[size];
+      score = new float[size];
+      touchedByWord = new int[size];
+      matches = new int[size];
+    }
+  }
 
-      if ( flag.equals("help") || flag.equals("h") )
+  /*
+   * Postings list of a word: the documents containing it, and its weighted count in each
+   */
+  static class Postings
+  {
+    int[] docs = new int[2];
+    float[] weights = new float[2];
+    int size;
+
+    public void add( int doc, float weight )
+    {
+      if ( size > 0 && docs[size-1] == doc )
       {
-        System.out.println( "Command line options are as follows:"                  );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-file <path to file>"                                  );
-        System.out.println( "(Specifies which ontology file to use)"                );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-port <number>"                                        );
-        System.out.println( "(Specified which port the server runs on)"             );
-        System.out.println( "(Default: 20080)"                                      );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-reasoner elk, or -reasoner hermit"                    );
-        System.out.println( "(Specifies which reasoner to use)"                     );
-        System.out.println( "(Default: elk)"                                        );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-namespace <iri>"                                      );
-        System.out.println( "(Specifies namespace for ontology)"                    );
-        System.out.println( "(Default: http://www.ricordo.eu/ricordo.owl#RICORDO_)" );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-save true, or -save false"                            );
-        System.out.println( "(Specifies whether owlfile changes are saved)"         );
-        System.out.println( "(Default: true)"                                       );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-uclsyntax true, or -uclsyntax false"                  );
-        System.out.println( "(Specifies whether OWLKB understands UCL syntax)"      );
-        System.out.println( "(Default: false)"                                      );
-        System.out.println( "------------------------------------"                  );
-        System.out.println( "-sparql <url base>"                                    );
-        System.out.println( "(Base of URL to use as SPARQL endpoint, to allow"      );
-        System.out.println( " interaction with a triple store.)"                    );
-        System.out.println( "(Default: null)"                                       );
-        System.out.println( "------------------------------------"                  );
-/*
-        System.out.println( "-openPHACTSid <ID for openPHACTS API>"                 );
-        System.out.println( "-openPHACTSkey <App key for openPHACTS API>"           );
-        System.out.println( "(For enabling Owlkb to query the openPHACTS"           );
-        System.out.println( " API.)"                                                );
-        System.out.println( "------------------------------------"                  );
-*/
-        System.out.println( "-help"                                                 );
-        System.out.println( "(Displays this helpfile)"                              );
-        System.out.println( "" );
-        helpOnly = true;
+        weights[size-1] += weight;
         return;
       }
 
-      if ( flag.equals("port") || flag.equals("p") )
+      if ( size == docs.length )
       {
-        if ( i+1 < args.length )
+        docs = Arrays.copyOf( docs, size * 2 );
+        weights = Arrays.copyOf( weights, size * 2 );
+      }
+
+      docs[size] = doc;
+      weights[size++] = weight;
+    }
+  }
+
+  /*
+   * The inferred class hierarchy, copied out of the reasoner into compressed sparse row
+   * arrays: nodes are the reasoner's equivalence classes, numbered in order of their
+   * representatives' IRIs, and node i's children are children[childStart[i] ..
+   * childStart[i+1]-1] (likewise parents and members).  Classes are referred to by their
+   * entity dictionary ids.  A snapshot is never changed once built; adding a class builds
+   * a new one.
+   */
+  static class Taxonomy
+  {
+    Owlkb owlkb;
+    int[] representative;              // Dictionary id of each node's representative class
+    int[] memberStart, members;        // Dictionary ids of each node's classes
+    int[] childStart, children;
+    int[] parentStart, parents;
+    int[] nodeOfEntity;                // Node of each dictionary id, or -1
+    int[] descendantCount;             // Distinct classes strictly below each node, not counting unsatisfiable ones
+    int bottom;                        // The node of owl:Nothing, or -1
+    int[] depth;                       // Length of the shortest path up to a root
+    double[] ic;                       // Information content: -ln of the share of all classes that are at or below the node
+    long buildMillis;
+    BlockingQueue<TaxonomyScratch> scratch;  // Idle visit marks, at most one per worker thread
+
+    /*
+     * Reachability labels from a depth-first walk (see labelForReachability)
+     */
+    int[] treePre, treeLast;           // Preorder interval of each node's subtree in the DFS tree
+    int[] low, post;                   // Postorder number, and the lowest one among its descendants
+    int[] low2, post2;                 // The same, from a walk visiting children in reverse order
+    AtomicLong subsumptionChecks, subsumptionSearches;
+
+    /*
+     * Build from lists, where nodeMembers.get(i) are node i's classes (representative first)
+     * and childLists.get(i) are the indices of its direct children.  counts[i] is node i's
+     * descendant count, if already known; otherwise pass null and they're all counted.
+     */
+    Taxonomy( Owlkb owlkb, List<OWLClass[]> nodeMembers, List<IntList> childLists, int[] counts, long startTime )
+    {
+      this.owlkb = owlkb;
+      this.scratch = new ArrayBlockingQueue<TaxonomyScratch>( owlkb.threads );
+
+      final EntityDictionary dictionary = owlkb.shortformProvider;
+      final int n = nodeMembers.size();
+      final int[] rep = new int[n];
+
+      for ( int i = 0; i < n; i++ )
+      {
+        for ( OWLClass c : nodeMembers.get(i) )
+          dictionary.add( c );
+
+        rep[i] = dictionary.idOf( nodeMembers.get(i)[0] );
+      }
+
+      /*
+       * Renumber nodes in IRI order, so results come out in a stable order
+       */
+      Integer[] order = new Integer[n];
+      for ( int i = 0; i < n; i++ )
+        order[i] = i;
+
+      Arrays.sort( order, new Comparator<Integer>()
+      {
+        public int compare( Integer a, Integer b )
         {
-          try
+          return dictionary.iris[rep[a]].compareTo( dictionary.iris[rep[b]] );
+        }
+      });
+
+      int[] newId = new int[n];
+      for ( int i = 0; i < n; i++ )
+        newId[order[i]] = i;
+
+      representative = new int[n];
+      memberStart = new int[n+1];
+      childStart = new int[n+1];
+      parentStart = new int[n+1];
+
+      int memberCount = 0, edgeCount = 0;
+
+      for ( int i = 0; i < n; i++ )
+      {
+        memberCount += nodeMembers.get(i).length;
+        edgeCount += childLists.get(i).size;
+      }
+
+      members = new int[memberCount];
+      children = new int[edgeCount];
+
+      int m = 0, e = 0;
+
+      for ( int i = 0; i < n; i++ )
+      {
+        int old = order[i];
+        OWLClass[] classes = nodeMembers.get(old);
+        IntList kids = childLists.get(old);
+
+        representative[i] = rep[old];
+        memberStart[i] = m;
+
+        for ( OWLClass c : classes )
+          members[m++] = dictionary.idOf( c );
+
+        Arrays.sort( members, memberStart[i], m );
+
+        childStart[i] = e;
+
+        for ( int j = 0; j < kids.size; j++ )
+          children[e++] = newId[kids.data[j]];
+
+        Arrays.sort( children, childStart[i], e );
+        e = childStart[i] + dedupe( children, childStart[i], e );
+      }
+
+      memberStart[n] = m;
+      childStart[n] = e;
+      children = Arrays.copyOf( children, e );
+
+      /*
+       * Invert the child links; visiting parents in order leaves each parent list sorted
+       */
+      for ( int i = 0; i < e; i++ )
+        parentStart[children[i] + 1]++;
+
+      for ( int i = 0; i < n; i++ )
+        parentStart[i+1] += parentStart[i];
+
+      parents = new int[e];
+      int[] fill = Arrays.copyOf( parentStart, n );
+
+      for ( int i = 0; i < n; i++ )
+      {
+        for ( int j = childStart[i]; j < childStart[i+1]; j++ )
+          parents[fill[children[j]]++] = i;
+      }
+
+      nodeOfEntity = new int[dictionary.size()];
+      Arrays.fill( nodeOfEntity, -1 );
+
+      for ( int i = 0; i < n; i++ )
+      {
+        for ( int j = memberStart[i]; j < memberStart[i+1]; j++ )
+          nodeOfEntity[members[j]] = i;
+      }
+
+      bottom = nodeOf( owlkb.df.getOWLNothing() );
+
+      labelForReachability();
+      computeDepths();
+
+      if ( counts == null )
+        countDescendants();
+      else
+      {
+        descendantCount = new int[n];
+
+        for ( int i = 0; i < n; i++ )
+          descendantCount[newId[i]] = counts[i];
+      }
+
+      computeInformationContent();
+
+      buildMillis = (System.nanoTime() - startTime) / 1000000;
+    }
+
+    /*
+     * One depth-first walk down the hierarchy gives each node two intervals (as in GRAIL):
+     *  - [treePre, treeLast] spans its subtree in the DFS tree, so containment proves that
+     *    one node is below another;
+     *  - [low, post] spans the postorder numbers of everything below it in the full DAG, so
+     *    non-containment proves that one node is not below another.
+     * A second walk, visiting children in reverse order, gives a second [low, post] interval
+     * to rule out more pairs.  Only pairs that none of these settles need a search.
+     */
+    void labelForReachability()
+    {
+      int n = nodeCount();
+
+      treePre = new int[n];
+      treeLast = new int[n];
+      low = new int[n];
+      post = new int[n];
+      low2 = new int[n];
+      post2 = new int[n];
+      subsumptionChecks = new AtomicLong();
+      subsumptionSearches = new AtomicLong();
+
+      walk( false, treePre, treeLast, low, post );
+      walk( true, new int[n], new int[n], low2, post2 );
+    }
+
+    void walk( boolean reversed, int[] treePre, int[] treeLast, int[] low, int[] post )
+    {
+      int n = nodeCount();
+      int preCount = 0, postCount = 0;
+      boolean[] seen = new boolean[n];
+      int[] stack = new int[n];
+      int[] cursor = new int[n];
+
+      for ( int root = 0; root < n; root++ )
+      {
+        if ( seen[root] || parentStart[root] != parentStart[root+1] )
+          continue;
+
+        int sp = 0;
+        seen[root] = true;
+        treePre[root] = preCount++;
+        cursor[root] = 0;
+        stack[sp++] = root;
+
+        while ( sp > 0 )
+        {
+          int v = stack[sp-1];
+          int degree = childStart[v+1] - childStart[v];
+
+          if ( cursor[v] < degree )
           {
-            port = Integer.parseInt(args[i+1]);
+            int k = cursor[v]++;
+            int c = children[ reversed ? childStart[v+1] - 1 - k : childStart[v] + k ];
+
+            if ( !seen[c] )
+            {
+              seen[c] = true;
+              treePre[c] = preCount++;
+              cursor[c] = 0;
+              stack[sp++] = c;
+            }
+            continue;
           }
-          catch( Exception e )
+
+          /*
+           * In a DAG, every child is finished before its parent
+           */
+          sp--;
+          treeLast[v] = preCount - 1;
+          post[v] = postCount++;
+          low[v] = post[v];
+
+          for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+            low[v] = Math.min( low[v], low[children[j]] );
+        }
+      }
+    }
+
+    /*
+     * Whether node a is node b or below it
+     */
+    public boolean isBelow( int a, int b )
+    {
+      subsumptionChecks.incrementAndGet();
+
+      if ( a == b || ( treePre[b] <= treePre[a] && treePre[a] <= treeLast[b] ) )
+        return true;
+
+      if ( !mayBeBelow( a, b ) )
+        return false;
+
+      /*
+       * Undecided: search down from b, only into nodes whose intervals could contain a
+       */
+      subsumptionSearches.incrementAndGet();
+
+      TaxonomyScratch x = scratch( this );
+
+      try
+      {
+        int stamp = x.nextStamp();
+        int sp = 0;
+
+        x.mark[b] = stamp;
+        x.queue[sp++] = b;
+
+        while ( sp > 0 )
+        {
+          int v = x.queue[--sp];
+
+          for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+          {
+            int c = children[j];
+
+            if ( x.mark[c] == stamp || !mayBeBelow( a, c ) )
+              continue;
+
+            if ( c == a || ( treePre[c] <= treePre[a] && treePre[a] <= treeLast[c] ) )
+              return true;
+
+            x.mark[c] = stamp;
+            x.queue[sp++] = c;
+          }
+        }
+
+        return false;
+      }
+      finally
+      {
+        releaseScratch( this, x );
+      }
+    }
+
+    boolean mayBeBelow( int a, int b )
+    {
+      return low[b] <= low[a] && post[a] <= post[b] && low2[b] <= low2[a] && post2[a] <= post2[b];
+    }
+
+    /*
+     * Remove duplicates from a sorted range, returning the number of distinct values
+     */
+    static int dedupe( int[] x, int from, int to )
+    {
+      int k = 0;
+
+      for ( int i = from; i < to; i++ )
+      {
+        if ( k == 0 || x[from + k - 1] != x[i] )
+          x[from + k++] = x[i];
+      }
+
+      return k;
+    }
+
+    /*
+     * Walk the reasoner's hierarchy down from owl:Thing
+     */
+    public static Taxonomy fromReasoner( Owlkb owlkb, OWLReasoner r )
+    {
+      long startTime = System.nanoTime();
+      List<OWLClass[]> nodeMembers = new ArrayList<OWLClass[]>();
+      List<IntList> childLists = new ArrayList<IntList>();
+      Map<OWLClass,Integer> index = new HashMap<OWLClass,Integer>();
+      ArrayDeque<Node<OWLClass>> queue = new ArrayDeque<Node<OWLClass>>();
+
+      Node<OWLClass> top = r.getTopClassNode();
+      addNode( top, nodeMembers, childLists, index );
+      queue.add( top );
+
+      while ( !queue.isEmpty() )
+      {
+        Node<OWLClass> node = queue.poll();
+
+        if ( node.isBottomNode() )
+          continue;
+
+        IntList kids = childLists.get( index.get( node.getRepresentativeElement() ) );
+
+        for ( Node<OWLClass> child : owlkb.subClassesOf( r, node.getRepresentativeElement(), true ) )
+        {
+          Integer j = index.get( child.getRepresentativeElement() );
+
+          if ( j == null )
           {
-            System.out.println( "Port must be a number." );
-            helpOnly = true;
-            return;
+            j = addNode( child, nodeMembers, childLists, index );
+            queue.add( child );
           }
-          System.out.println( "Owlkb will listen on port "+args[++i] );
-        }
-        else
-        {
-          System.out.println( "Which port do you want the server to listen on?" );
-          helpOnly = true;
-          return;
+
+          kids.add( j );
         }
       }
-      else if ( flag.equals("rname") || flag.equals("reasoner") )
+
+      return new Taxonomy( owlkb, nodeMembers, childLists, null, startTime );
+    }
+
+    static int addNode( Node<OWLClass> node, List<OWLClass[]> nodeMembers, List<IntList> childLists, Map<OWLClass,Integer> index )
+    {
+      OWLClass rep = node.getRepresentativeElement();
+      List<OWLClass> classes = new ArrayList<OWLClass>();
+
+      classes.add( rep );
+
+      for ( OWLClass c : node.getEntities() )
       {
-        if ( i+1 < args.length && (args[i+1].equals("elk") || args[i+1].equals("hermit")) )
-        {
-          reasonerName = args[++i];
-          System.out.println( "Using "+reasonerName+" as reasoner" );
-        }
-        else
+        if ( !c.equals( rep ) )
+          classes.add( c );
+      }
+
+      int i = nodeMembers.size();
+
+      nodeMembers.add( classes.toArray( new OWLClass[classes.size()] ) );
+      childLists.add( new IntList() );
+      index.put( rep, i );
+
+      return i;
+    }
+
+    /*
+     * A copy of this snapshot with a newly added class placed where the reasoner puts it,
+     * or null if its neighbours aren't all in this snapshot (then rebuild from scratch)
+     */
+    public Taxonomy withClass( OWLClass added, OWLReasoner r )
+    {
+      long startTime = System.nanoTime();
+      int n = nodeCount();
+      List<OWLClass[]> nodeMembers = new ArrayList<OWLClass[]>( n + 1 );
+      List<IntList> childLists = new ArrayList<IntList>( n + 1 );
+
+      for ( int i = 0; i < n; i++ )
+      {
+        OWLClass[] classes = new OWLClass[memberStart[i+1] - memberStart[i]];
+        int k = 0;
+
+        classes[k++] = entity( representative[i] ).asOWLClass();
+
+        for ( int j = memberStart[i]; j < memberStart[i+1]; j++ )
         {
-          System.out.println( "Valid reasoners are: ELK, HermiT" );
-          helpOnly = true;
-          return;
+          if ( members[j] != representative[i] )
+            classes[k++] = entity( members[j] ).asOWLClass();
         }
+
+        IntList kids = new IntList();
+
+        for ( int j = childStart[i]; j < childStart[i+1]; j++ )
+          kids.add( children[j] );
+
+        nodeMembers.add( classes );
+        childLists.add( kids );
       }
-      else if ( flag.equals("hd") || flag.equals("hd_save") || flag.equals("save") )
+
+      /*
+       * Equivalent to a class already in the hierarchy (e.g. unsatisfiable): join its node
+       */
+      for ( OWLClass eq : owlkb.equivalentClassesOf( r, added ).getEntities() )
       {
-        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
-          hdSave = true;
-        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
+        int node = eq.equals( added ) ? -1 : nodeOf( eq );
+
+        if ( node != -1 )
         {
-          hdSave = false;
-          System.out.println( "Saving changes to hard drive: disabled." );
+          OWLClass[] classes = nodeMembers.get( node );
+          classes = Arrays.copyOf( classes, classes.length + 1 );
+          classes[classes.length - 1] = added;
+          nodeMembers.set( node, classes );
+
+          /*
+           * The class is one more below each of the node's ancestors
+           */
+          int[] counts = Arrays.copyOf( descendantCount, n );
+
+          if ( node != bottom )
+            raiseCounts( counts, parents, parentStart[node], parentStart[node+1] );
+
+          return new Taxonomy( owlkb, nodeMembers, childLists, counts, startTime );
         }
-        else
+      }
+
+      /*
+       * Otherwise it's a new node between its direct superclasses and direct subclasses
+       */
+      IntList kids = new IntList();
+
+      for ( Node<OWLClass> child : owlkb.subClassesOf( r, added, true ) )
+      {
+        int node = nodeOf( child.getRepresentativeElement() );
+
+        if ( node == -1 )
+          return null;
+
+        kids.add( node );
+      }
+
+      nodeMembers.add( new OWLClass[] { added } );
+      childLists.add( kids );
+
+      IntList supers = new IntList();
+
+      for ( Node<OWLClass> parent : owlkb.superClassesOf( r, added, true ) )
+      {
+        int p = nodeOf( parent.getRepresentativeElement() );
+
+        if ( p == -1 )
+          return null;
+
+        supers.add( p );
+
+        IntList old = childLists.get( p ), updated = new IntList();
+
+        for ( int j = 0; j < old.size; j++ )
         {
-          System.out.println( "hd_save can be set to: true, false" );
-          helpOnly = true;
-          return;
+          if ( !kids.contains( old.data[j] ) )
+            updated.add( old.data[j] );
         }
-        i++;
+
+        updated.add( n );
+        childLists.set( p, updated );
       }
-      else if ( flag.equals("openphactsid") )
+
+      /*
+       * Its subclasses were already below its superclasses, so only the class itself is new
+       * below them
+       */
+      int[] counts = Arrays.copyOf( descendantCount, n + 1 );
+
+      raiseCounts( counts, supers.data, 0, supers.size );
+      TaxonomyScratch x = scratch( this );
+
+      try
       {
-        if ( i+1 < args.length )
+        counts[n] = countBelow( kids.data, 0, kids.size, null, x );
+      }
+      finally
+      {
+        releaseScratch( this, x );
+      }
+
+      return new Taxonomy( owlkb, nodeMembers, childLists, counts, startTime );
+    }
+
+    /*
+     * Count every node's descendants in one pass, children before parents.  Where everything
+     * below a node has a single parent, the hierarchy under it is a tree and its children's
+     * counts just add up; elsewhere a search counts the distinct classes below it, taking
+     * such tree-shaped parts whole instead of walking into them.
+     */
+    void countDescendants()
+    {
+      int n = nodeCount();
+      int[] byPost = new int[n];
+      boolean[] isTree = new boolean[n];
+      TaxonomyScratch x = new TaxonomyScratch( n );
+
+      descendantCount = new int[n];
+
+      for ( int i = 0; i < n; i++ )
+        byPost[post[i]] = i;
+
+      for ( int k = 0; k < n; k++ )
+      {
+        int v = byPost[k];
+        int sum = 0;
+
+        if ( v == bottom )
+          continue;
+
+        isTree[v] = true;
+
+        for ( int j = childStart[v]; j < childStart[v+1]; j++ )
         {
-          openPhactsAppId = args[i+1];
-          System.out.println( "Set to use "+args[i+1]+" as openPHACTS Application ID" );
+          int c = children[j];
+
+          if ( c == bottom )
+            continue;
+
+          if ( !isTree[c] || parentStart[c+1] - parentStart[c] != 1 )
+            isTree[v] = false;
+
+          sum += memberStart[c+1] - memberStart[c] + descendantCount[c];
         }
-        i++;
+
+        descendantCount[v] = isTree[v] ? sum : countBelow( children, childStart[v], childStart[v+1], isTree, x );
       }
-      else if ( flag.equals("openphactskey") )
+    }
+
+    /*
+     * Number of distinct classes in, or below, the nodes nodes[from..to-1], not counting
+     * unsatisfiable ones.  Nodes marked in isTree (if given) are counted without searching
+     * below them.
+     */
+    int countBelow( int[] nodes, int from, int to, boolean[] isTree, TaxonomyScratch x )
+    {
+      int stamp = x.nextStamp();
+      int sp = 0, total = 0;
+
+      for ( int j = from; j < to; j++ )
       {
-        if ( i+1 < args.length )
+        if ( nodes[j] != bottom && x.mark[nodes[j]] != stamp )
         {
-          openPhactsAppKey = args[i+1];
-          System.out.println( "Set to use "+args[i+1]+" as openPHACTS Application Key" );
+          x.mark[nodes[j]] = stamp;
+          x.queue[sp++] = nodes[j];
         }
-        i++;
       }
-      else if ( flag.equals( "uclsyntax" ) || flag.equals("ucl-syntax") || flag.equals("ucl_syntax") )
+
+      while ( sp > 0 )
       {
-        if ( i+1 < args.length && (args[i+1].equals("t") || args[i+1].equals("true")) )
+        int v = x.queue[--sp];
+
+        total += memberStart[v+1] - memberStart[v];
+
+        if ( isTree != null && isTree[v] )
         {
-          /*
-           * Backwards compatibility (originally uclsyntax was a boolean and open-physiology was hardcoded as the endpoint
-           */
-          uclSyntax = "http://open-physiology.org:5052/uclsyntax/";
-          System.out.println( "UCL Syntax: endpoint set to http://open-physiology.org:5052/uclsyntax/" );
+          total += descendantCount[v];
+          continue;
         }
-        else if ( i+1 < args.length && (args[i+1].equals("f") || args[i+1].equals("false")) )
-          uclSyntax = null;
-        else if ( i+1 < args.length )
+
+        for ( int j = childStart[v]; j < childStart[v+1]; j++ )
         {
-          uclSyntax = args[i+1];
-          System.out.println( "UCL Syntax: endpoint set to " + uclSyntax );
+          int c = children[j];
+
+          if ( c != bottom && x.mark[c] != stamp )
+          {
+            x.mark[c] = stamp;
+            x.queue[sp++] = c;
+          }
         }
-        else
+      }
+
+      return total;
+    }
+
+    /*
+     * Add one to the counts of the nodes nodes[from..to-1] and everything above them
+     */
+    void raiseCounts( int[] counts, int[] nodes, int from, int to )
+    {
+      TaxonomyScratch x = scratch( this );
+
+      try
+      {
+        int stamp = x.nextStamp();
+        int sp = 0;
+
+        for ( int j = from; j < to; j++ )
         {
-          System.out.println( "uclsyntax can be set to: true, false" );
-          helpOnly = true;
-          return;
+          if ( x.mark[nodes[j]] != stamp )
+          {
+            x.mark[nodes[j]] = stamp;
+            x.queue[sp++] = nodes[j];
+          }
+        }
+
+        while ( sp > 0 )
+        {
+          int v = x.queue[--sp];
+
+          counts[v]++;
+
+          for ( int j = parentStart[v]; j < parentStart[v+1]; j++ )
+          {
+            if ( x.mark[parents[j]] != stamp )
+            {
+              x.mark[parents[j]] = stamp;
+              x.queue[sp++] = parents[j];
+            }
+          }
         }
-        i++;
       }
-      else if (flag.equals("kbns") || flag.equals("ns") || flag.equals("namespace") )
+      finally
       {
-        if ( i+1 < args.length )
+        releaseScratch( this, x );
+      }
+    }
+
+    public int descendantCount( int node )
+    {
+      return descendantCount[node];
+    }
+
+    /*
+     * From the descendant counts, so a class's information content is higher the fewer
+     * classes it subsumes, and never lower than that of a class above it
+     */
+    void computeInformationContent()
+    {
+      int n = nodeCount();
+      double total = 0;
+
+      ic = new double[n];
+
+      for ( int i = 0; i < n; i++ )
+      {
+        if ( i != bottom )
+          total += memberStart[i+1] - memberStart[i];
+      }
+
+      for ( int i = 0; i < n; i++ )
+      {
+        if ( i != bottom )
+          ic[i] = -Math.log( ( descendantCount[i] + memberStart[i+1] - memberStart[i] ) / total );
+      }
+    }
+
+    /*
+     * The most informative common ancestor of two nodes (one of their lowest common ancestors)
+     */
+    public int mica( int a, int b )
+    {
+      int best = -1;
+
+      for ( int c : lowestCommonAncestors( new Ancestry[] { ancestry( a ), ancestry( b ) } ) )
+      {
+        if ( best == -1 || ic[c] > ic[best] )
+          best = c;
+      }
+
+      return best;
+    }
+
+    public double resnik( int a, int b )
+    {
+      int m = mica( a, b );
+
+      return ( m == -1 ) ? 0 : ic[m];
+    }
+
+    public double lin( int a, int b )
+    {
+      int m = mica( a, b );
+
+      return ( m == -1 ) ? 0 : linScore( ic[m], a, b );
+    }
+
+    /*
+     * Lin similarity of a and b, given the information content of their most informative
+     * common ancestor
+     */
+    double linScore( double shared, int a, int b )
+    {
+      if ( a == b )
+        return 1;
+
+      return ( ic[a] + ic[b] == 0 ) ? 0 : 2 * shared / ( ic[a] + ic[b] );
+    }
+
+    /*
+     * The k nodes most similar to node a (by Lin, or else Resnik, similarity), best first;
+     * their scores go in scores[].  A node's most informative common ancestor with a is the
+     * most informative ancestor of a above it, so the search goes through a's ancestors in
+     * order of decreasing information content, and the first of them a node turns up below
+     * settles its score.  Scores can only fall from one ancestor to the next, and from a node
+     * to the nodes below it, so the search stops as soon as nothing left could make the top k.
+     */
+    public int[] mostSimilar( int a, int k, boolean useLin, double[] scores )
+    {
+      TaxonomyScratch x = scratch( this );
+
+      try
+      {
+        final double[] score = x.score;
+        Ancestry anc = ancestry( a );
+        Integer[] order = new Integer[anc.size];
+
+        for ( int i = 0; i < anc.size; i++ )
+          order[i] = anc.nodes[i];
+
+        Arrays.sort( order, new Comparator<Integer>()
         {
-          System.out.println( "Using "+args[i+1]+" as ontology namespace." );
-          kbNs = args[++i];
+          public int compare( Integer p, Integer q )
+          {
+            return ( ic[p] != ic[q] ) ? ( ic[p] > ic[q] ? -1 : 1 ) : p - q;
+          }
+        });
+
+        Comparator<Integer> worstFirst = new Comparator<Integer>()
+        {
+          public int compare( Integer p, Integer q )
+          {
+            return ( score[p] != score[q] ) ? ( score[p] < score[q] ? -1 : 1 ) : q - p;
+          }
+        };
+
+        PriorityQueue<Integer> best = new PriorityQueue<Integer>( k + 1, worstFirst );
+        int stamp = x.nextStamp();
+
+        x.mark[a] = stamp;
+
+        for ( int m : order )
+        {
+          double bound = useLin ? linScore( ic[m], a, m ) : ic[m];
+
+          if ( best.size() == k && bound <= score[best.peek()] )
+            break;
+
+          int sp = 0;
+
+          if ( m == a )
+          {
+            for ( int j = childStart[a]; j < childStart[a+1]; j++ )
+            {
+              if ( children[j] != bottom && x.mark[children[j]] != stamp )
+              {
+                x.mark[children[j]] = stamp;
+                x.queue[sp++] = children[j];
+              }
+            }
+          }
+          else if ( x.mark[m] != stamp )
+          {
+            x.mark[m] = stamp;
+            x.queue[sp++] = m;
+          }
+
+          while ( sp > 0 )
+          {
+            int v = x.queue[--sp];
+            double s = useLin ? linScore( ic[m], a, v ) : ic[m];
+
+            if ( best.size() == k && s <= score[best.peek()] )
+              continue;
+
+            score[v] = s;
+            best.add( v );
+
+            if ( best.size() > k )
+              best.poll();
+
+            for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+            {
+              if ( children[j] != bottom && x.mark[children[j]] != stamp )
+              {
+                x.mark[children[j]] = stamp;
+                x.queue[sp++] = children[j];
+              }
+            }
+          }
         }
-        else
+
+        List<Integer> top = new ArrayList<Integer>( best );
+        Collections.sort( top, Collections.reverseOrder( worstFirst ) );
+
+        int[] result = new int[top.size()];
+
+        for ( int i = 0; i < result.length; i++ )
         {
-          System.out.println( "What do you want the ontology's namespace to be?" );
-          System.out.println( "Default: http://www.ricordo.eu/ricordo.owl#RICORDO_" );
-          helpOnly = true;
-          return;
+          result[i] = top.get(i);
+          scores[i] = score[result[i]];
         }
+
+        return result;
       }
-      else if ( flag.equals("sparql") )
+      finally
       {
-        if ( i+1 < args.length )
-        {
-          System.out.println( "Using "+args[i+1]+" as base of URL of SPARQL endpoint." );
-          sparql = args[++i];
-        }
-        else
-        {
-          System.out.println( "Specify the base of the URL of the SPARQL endpoint you want to use." );
-          System.out.println( "Default: null (in which case OWLKB will not interact with SPARQL)" );
-          helpOnly = true;
-          return;
-        }
+        releaseScratch( this, x );
       }
-      else if ( flag.equals("kbfilename") || flag.equals("filename") || flag.equals("kbfile") || flag.equals("file") || flag.equals("kb") )
+    }
+
+    /*
+     * The children of a node's parents, each once, paired with the parent it's first found
+     * under: result[2i] is a sibling node and result[2i+1] its parent.  The node itself is
+     * one of its siblings.
+     */
+    public int[] siblings( int node )
+    {
+      TaxonomyScratch x = scratch( this );
+
+      try
       {
-        if ( i+1 < args.length )
-        {
-          System.out.println( "Using "+args[i+1]+" as ontology filename." );
-          kbFilename = args[++i];
-        }
-        else
+        int stamp = x.nextStamp();
+        IntList pairs = new IntList();
+
+        for ( int i = parentStart[node]; i < parentStart[node+1]; i++ )
         {
-          System.out.println( "Specify the filename of the ontology." );
-          helpOnly = true;
-          return;
+          int p = parents[i];
+
+          for ( int j = childStart[p]; j < childStart[p+1]; j++ )
+          {
+            if ( x.mark[children[j]] != stamp )
+            {
+              x.mark[children[j]] = stamp;
+              pairs.add( children[j] );
+              pairs.add( p );
+            }
+          }
         }
+
+        return Arrays.copyOf( pairs.data, pairs.size );
       }
-      else
+      finally
       {
-        System.out.println( "Unrecognized command line argument: "+args[i] );
-        System.out.println( "For help, run with HELP as command line argument." );
-        helpOnly = true;
-        return;
+        releaseScratch( this, x );
       }
     }
-  }
-
-  public void sendGui(HttpExchange t)
-  {
-    String theHtml, theJS;
 
-    try
+    /*
+     * Breadth-first from the roots, so each node's depth is its shortest distance from one
+     */
+    void computeDepths()
     {
-      theHtml = readFile("gui.html");
-      theJS = readFile("gui.js");
+      int n = nodeCount();
+      int[] queue = new int[n];
+      int head = 0, tail = 0;
 
-      if ( theHtml == null || theJS == null )
+      depth = new int[n];
+      Arrays.fill( depth, -1 );
+
+      for ( int i = 0; i < n; i++ )
       {
-        sendResponse( t, "The GUI could not be sent, due to a problem with the html file or the javascript file.", false );
-        return;
+        if ( parentStart[i] == parentStart[i+1] )
+        {
+          depth[i] = 0;
+          queue[tail++] = i;
+        }
       }
 
-      theHtml = theHtml.replace("@JAVASCRIPT", "<script type='text/javascript'>"+theJS+"</script>");
+      while ( head < tail )
+      {
+        int v = queue[head++];
 
-      sendResponse( t, theHtml, false );
+        for ( int j = childStart[v]; j < childStart[v+1]; j++ )
+        {
+          if ( depth[children[j]] == -1 )
+          {
+            depth[children[j]] = depth[v] + 1;
+            queue[tail++] = children[j];
+          }
+        }
+      }
     }
-    catch(Exception e)
+
+    public int depth( int node )
     {
-      ;
+      return depth[node];
     }
-  }
-
-  public String computeAddlabelResponse( OWLOntology o, IRI ontology_iri, OWLOntologyManager m, String req, boolean fJson )
-  {
-    int eqPos = req.indexOf('=');
 
-    if ( eqPos == -1 || eqPos == 0 )
+    /*
+     * A node and everything above it, nearest first (breadth-first up the parent links).
+     * nodes[i] was reached from nodes[via[i]], so following via from any entry back to the
+     * start gives a shortest path; via[0] is -1.
+     */
+    static class Ancestry
     {
-      if ( fJson )
-        return "{'syntax error'}";
-      else
-        return "Invalid syntax.  Syntax: /addlabel/iri=label, e.g.: /addlabel/RICORDO_123=volume of blood";
-    }
+      int[] nodes, via;
+      int size;
 
-    String iri = req.substring(0,eqPos);
-    String label = req.substring(eqPos+1);
+      public int indexOf( int node )
+      {
+        for ( int i = 0; i < size; i++ )
+        {
+          if ( nodes[i] == node )
+            return i;
+        }
 
-    if ( iri.length() < "RICORDO_".length() || !iri.substring(0,"RICORDO_".length()).equals("RICORDO_") )
-    {
-      if ( fJson )
-        return "{'non-ricordo class error'}";
-      else
-        return "Only RICORDO classes can have labels added to them through OWLKB.";
+        return -1;
+      }
     }
 
-    if ( label.trim().equals("") )
+    public Ancestry ancestry( int node )
     {
-      if ( fJson )
-        return "{'blank label error'}";
-      else
-        return "Blank labels are not allowed.";
-    }
-
-    OWLEntity e = shortformProvider.getEntity(iri);
+      TaxonomyScratch x = scratch( this );
 
-    if ( e == null || !e.isOWLClass() )
-    {
-      if ( fJson )
-        return "{'class not found error'}";
-      else
-        return "The specified class could not be found.  Please make sure you're using the shortform of the iri, e.g., RICORDO_123 instead of http://website.com/RICORDO_123";
-    }
+      try
+      {
+        int stamp = x.nextStamp();
+        IntList nodes = new IntList(), via = new IntList();
 
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel );
+        x.mark[node] = stamp;
+        nodes.add( node );
+        via.add( -1 );
 
-    if ( !annots.isEmpty() )
-    {
-      for ( OWLAnnotation a : annots )
-      {
-        if ( a.getValue() instanceof OWLLiteral )
+        for ( int head = 0; head < nodes.size; head++ )
         {
-          if ( ((OWLLiteral)a.getValue()).getLiteral().equals(label) )
-            return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
+          int v = nodes.data[head];
+
+          for ( int j = parentStart[v]; j < parentStart[v+1]; j++ )
+          {
+            if ( x.mark[parents[j]] != stamp )
+            {
+              x.mark[parents[j]] = stamp;
+              nodes.add( parents[j] );
+              via.add( head );
+            }
+          }
         }
+
+        Ancestry a = new Ancestry();
+        a.nodes = nodes.data;
+        a.via = via.data;
+        a.size = nodes.size;
+
+        return a;
+      }
+      finally
+      {
+        releaseScratch( this, x );
       }
     }
 
-    IRI rdfsLabelIRI = org.semanticweb.owlapi.vocab.OWLRDFVocabulary.RDFS_LABEL.getIRI();
-    OWLAnnotation a = df.getOWLAnnotation( df.getOWLAnnotationProperty(rdfsLabelIRI), df.getOWLLiteral(label) );
-    OWLAxiom axiom = df.getOWLAnnotationAssertionAxiom(e.asOWLClass().getIRI(), a);
-    m.applyChange(new AddAxiom( o, axiom ));
-    logString( "Added rdfs:label "+label+" to class "+iri+"." );
+    /*
+     * Shortest path up from an ancestry's start to one of its nodes, start first
+     */
+    public int[] pathUp( Ancestry a, int node )
+    {
+      IntList path = new IntList();
 
-    maybeSaveOntology( o, ontology_iri, m );
+      for ( int i = a.indexOf( node ); i != -1; i = a.via[i] )
+        path.add( a.nodes[i] );
 
-    return fJson ? "{'ok'}" : "Class "+iri+" now has label "+escapeHTML(label);
-  }
+      int[] result = new int[path.size];
 
-  public void maybeSaveOntology( OWLOntology ont, IRI iri, OWLOntologyManager m )
-  {
-    if ( hdSave )
+      for ( int i = 0; i < path.size; i++ )
+        result[i] = path.data[path.size - 1 - i];
+
+      return result;
+    }
+
+    /*
+     * The lowest nodes above (or at) all of the given nodes, deepest first.  Everything above a
+     * common ancestor is also a common ancestor, so a common ancestor is lowest just when none of
+     * its children is one.
+     */
+    public int[] lowestCommonAncestors( Ancestry[] ancestries )
     {
-      logString( "Saving ontology to hard drive..." );
+      int[] common = Arrays.copyOf( ancestries[0].nodes, ancestries[0].size );
+      Arrays.sort( common );
 
-      try
-      {
-        m.saveOntology(ont,iri);
-      }
-      catch ( OWLOntologyStorageException e )
+      for ( int i = 1; i < ancestries.length; i++ )
       {
-        e.printStackTrace(); //To do: proper error handling here
-      }
+        int[] other = Arrays.copyOf( ancestries[i].nodes, ancestries[i].size );
+        Arrays.sort( other );
 
-      logString( "Finished saving ontology to hard drive." );
-    }
-    else
-      logString( "Skipping writing to hard drive (disabled by commandline argument)." );
-  }
+        int k = 0;
 
-  public OWLClassExpression parseManchester( String manchester, OWLOntology o, OWLEntityChecker ec )
-  {
-    ManchesterOWLSyntaxEditorParser parser;
-    OWLClassExpression exp;
+        for ( int c : common )
+        {
+          if ( Arrays.binarySearch( other, c ) >= 0 )
+            common[k++] = c;
+        }
 
-    parser = new ManchesterOWLSyntaxEditorParser(df, manchester);
-    parser.setDefaultOntology(o);
-    parser.setOWLEntityChecker(ec);
+        common = Arrays.copyOf( common, k );
+      }
 
-    try
-    {
-      exp = parser.parseClassExpression();
-    }
-    catch(Exception e)
-    {
-      return null;
-    }
+      IntList lowest = new IntList();
 
-    return exp;
-  }
+      for ( int c : common )
+      {
+        boolean isLowest = true;
 
-  public String computeRdfstoreResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLEntityChecker ec, OWLReasoner r, String req )
-  {
-    String x = fullIriFromFullOrShortIri( req, o );
+        for ( int j = childStart[c]; j < childStart[c+1] && isLowest; j++ )
+        {
+          if ( Arrays.binarySearch( common, children[j] ) >= 0 )
+            isLowest = false;
+        }
 
-    if ( x != null )
-      return x;
+        if ( isLowest )
+          lowest.add( c );
+      }
 
-    OWLClassExpression exp = parseManchester( req, o, ec );
+      Integer[] order = new Integer[lowest.size];
+      for ( int i = 0; i < lowest.size; i++ )
+        order[i] = lowest.data[i];
 
-    if ( exp != null )
-    {
-      ArrayList<String> terms = getSubTerms(exp, r, true, false, false);
+      Arrays.sort( order, new Comparator<Integer>()
+      {
+        public int compare( Integer a, Integer b )
+        {
+          return ( depth[a] != depth[b] ) ? depth[b] - depth[a] : a - b;
+        }
+      });
 
-      return computeResponse( terms, true, true, false );
+      int[] result = new int[order.length];
+      for ( int i = 0; i < order.length; i++ )
+        result[i] = order[i];
+
+      return result;
     }
 
-    return req;
-  }
+    OWLEntity entity( int id )
+    {
+      return owlkb.shortformProvider.entity( id );
+    }
 
-  public String computeSimilarMoleculesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, OWLEntityChecker ec, String req )
-  {
-    if ( openPhactsAppId == null || openPhactsAppKey == null )
-      return "{\"error\": \"To use the similar_molecules command, OWLKB must have openPHACTS appID and appKey specified (using Owlkb's command-line arguments)\"}";
+    /*
+     * The node of a named class, or -1 for class expressions and classes not in the snapshot
+     */
+    public int nodeOf( OWLClassExpression exp )
+    {
+      if ( exp.isAnonymous() )
+        return -1;
 
-    if ( !req.substring(0,4).equals("http") )
-      req = "http://rdf.ebi.ac.uk/resource/chembl/molecule/" + req;
+      int id = owlkb.shortformProvider.idOf( exp.asOWLClass() );
 
-    StringBuilder sb = new StringBuilder("https://beta.openphacts.org/1.5/compound/classifications?uri=");
-    sb.append( URLEncode( req ) );
-    sb.append( "&_format=json&app_id=" );
-    sb.append( openPhactsAppId );
-    sb.append( "&app_key=" );
-    sb.append( openPhactsAppKey );
+      return ( id == -1 || id >= nodeOfEntity.length ) ? -1 : nodeOfEntity[id];
+    }
 
-    String raw = queryURL( sb.toString() );
+    /*
+     * The node of the named class with the given IRI, or -1
+     */
+    public int nodeOfIri( IRI iri )
+    {
+      int id = owlkb.shortformProvider.idOfIri( iri.toString() );
 
-    if ( raw == null )
-      return "{\"error\": \"Could not get details about indicated molecule from OpenPHACTS\"}";
+      return ( id == -1 || id >= nodeOfEntity.length ) ? -1 : nodeOfEntity[id];
+    }
 
-    String classification = naiveJsonParse( raw, "hasChebiClassification", "[", "]" );
+    public OWLEntity representative( int node )
+    {
+      return entity( representative[node] );
+    }
 
-    if ( raw == null )
-      return "{\"error\": \"Could not parse OpenPHACTS's response\"}";
+    public int[] members( int node )
+    {
+      return Arrays.copyOfRange( members, memberStart[node], memberStart[node+1] );
+    }
 
-    java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("CHEBI_[\\d]*").matcher(classification);
+    public int[] children( int node )
+    {
+      return Arrays.copyOfRange( children, childStart[node], childStart[node+1] );
+    }
 
-    Set<OWLClass> parents = new HashSet<OWLClass>();
+    public int[] parents( int node )
+    {
+      return Arrays.copyOfRange( parents, parentStart[node], parentStart[node+1] );
+    }
 
-    while ( matcher.find() )
+    /*
+     * All nodes strictly below the given one (including the bottom node), in node order
+     */
+    public int[] descendants( int node )
     {
-      String chebi = matcher.group();
-      OWLClassExpression exp = parseManchester( chebi, o, ec );
+      TaxonomyScratch x = scratch( this );
 
-      if ( exp == null )
-        return "{\"error\": \"OpenPHACTS indicated a CHEBI term, "+chebi+", unrecognized by OWLKB\"}";
+      try
+      {
+        int stamp = x.nextStamp();
+        int head = 0, tail = 0;
 
-      parents.addAll( reasoner.getSuperClasses( exp, true ).getFlattened() );
-    }
+        for ( int j = childStart[node]; j < childStart[node+1]; j++ )
+        {
+          x.mark[children[j]] = stamp;
+          x.queue[tail++] = children[j];
+        }
 
-    Set<OWLClass> siblings = new HashSet<OWLClass>();
+        while ( head < tail )
+        {
+          int i = x.queue[head++];
 
-    for ( OWLClass parent : parents )
-      siblings.addAll( reasoner.getSubClasses( parent, true ).getFlattened() );
+          for ( int j = childStart[i]; j < childStart[i+1]; j++ )
+          {
+            int c = children[j];
 
-    return "{\"error\": \"This command is currently under construction\"}";
-  }
+            if ( x.mark[c] != stamp )
+            {
+              x.mark[c] = stamp;
+              x.queue[tail++] = c;
+            }
+          }
+        }
 
-  public String computeSubgraphResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    req = "," + req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
-    req = req.replace("#", "%23");
+        int[] result = Arrays.copyOf( x.queue, tail );
+        Arrays.sort( result );
 
-    String featherResponse = queryFeather("subgraph", req);
+        return result;
+      }
+      finally
+      {
+        releaseScratch( this, x );
+      }
+    }
 
-    if ( featherResponse == null )
-      return "?";
-    else
-      return featherResponse;
-  }
+    /*
+     * Visit marks for a traversal, from this snapshot's pool if it has any; hand them back with
+     * releaseScratch.  Marking with a fresh stamp per traversal means the marks never need
+     * clearing, so they can be reused even after a traversal that failed.
+     */
+    static TaxonomyScratch scratch( Taxonomy tx )
+    {
+      TaxonomyScratch x = tx.scratch.poll();
 
-  public String computeShortestpathResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    req = req.replace("fma:", "http://purl.org/obo/owlapi/fma%23FMA_");
-    String featherResponse = queryFeather("shortpath", req);
+      return x != null ? x : new TaxonomyScratch( tx.nodeCount() );
+    }
 
-    if ( featherResponse == null )
-      return "?";
-    else
-      return featherResponse;
-  }
+    /*
+     * Keep the marks for the next traversal, or drop them if the pool is full
+     */
+    static void releaseScratch( Taxonomy tx, TaxonomyScratch x )
+    {
+      tx.scratch.offer( x );
+    }
 
-  public String computeGenerateTriplesResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    OWLReasoner r = reasoner;
-    java.io.PrintWriter writer;
+    public int nodeCount()
+    {
+      return representative.length;
+    }
 
-    try
+    public int edgeCount()
     {
-      writer = new java.io.PrintWriter( "triples.nt", "UTF-8" );
+      return children.length;
     }
-    catch( Exception e )
+
+    public long bytes()
     {
-      return "{ \"error\": \"Could not open triples.nt for writing\" }";
+      return 4L * ( representative.length + memberStart.length + members.length + childStart.length + children.length
+                  + parentStart.length + parents.length + nodeOfEntity.length + 10 * representative.length );
     }
+  }
 
-    for ( OWLOntology ont : importClosure )
+  /*
+   * Undirected graph for /shortestpath over the taxonomy snapshot's nodes, in compressed
+   * sparse row form: node i's neighbours are adj[start[i] .. start[i+1]-1], reached along
+   * the edges kind[..].  An edge's kind is 2k for the k'th link name followed forward (from
+   * subclass to superclass, or from C to D for "C SubClassOf P some D"), and 2k+1 followed
+   * backward.  owl:Thing and owl:Nothing are left out, since every class is one step from them.
+   */
+  static class PathGraph
+  {
+    /*
+     * The links besides subclass ones, as dictionary ids: from[i] to to[i] by names[kind[i]]
+     */
+    static class Links
     {
-      Set<OWLClass> classes = ont.getClassesInSignature();
+      boolean subclass;
+      List<String> names = new ArrayList<String>();
+      IntList from = new IntList(), to = new IntList(), kind = new IntList();
+      int size;
 
-      for ( OWLClass c : classes )
+      public void add( int f, int t, int k )
       {
-        NodeSet<OWLClass> subClasses = r.getSubClasses(c, true);
-        String cString = c.toStringID();
-
-        Set<OWLIndividual> inds = c.getIndividuals(ont);
+        from.add( f );
+        to.add( t );
+        kind.add( k );
+        size++;
+      }
+    }
 
-        for ( OWLIndividual ind : inds )
-        {
-          if ( !(ind instanceof OWLNamedIndividual) )
-            continue;
+    Taxonomy tx;
+    String[] names;
+    int[] start, adj, kind;
+    BlockingQueue<PathScratch> scratch;  // Idle search state, at most one per worker thread
 
-          String iString = ind.asOWLNamedIndividual().getIRI().toString();
+    public PathGraph( Taxonomy tx, Links links )
+    {
+      this.tx = tx;
+      this.scratch = new ArrayBlockingQueue<PathScratch>( tx.owlkb.threads );
 
-          if ( iString.equals("") )
-            continue;
+      int n = tx.nodeCount();
+      int top = tx.nodeOf( tx.owlkb.df.getOWLThing() );
+      int offset = links.subclass ? 1 : 0;
+      IntList ends = new IntList(), kinds = new IntList();
 
-          writer.println( "<" + iString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
+      names = new String[links.names.size() + offset];
+      if ( links.subclass )
+        names[0] = "subClassOf";
+      for ( int i = 0; i < links.names.size(); i++ )
+        names[i + offset] = links.names.get(i);
 
-          if ( !cString.equals("") )
-            writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + iString + "> ." );
+      if ( links.subclass )
+      {
+        for ( int p = 0; p < n; p++ )
+        {
+          for ( int j = tx.childStart[p]; j < tx.childStart[p+1]; j++ )
+          {
+            ends.add( tx.children[j] );
+            ends.add( p );
+            kinds.add( 0 );
+          }
         }
+      }
 
-        if ( cString.equals("") )
-          continue;
-
-        writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
+      for ( int i = 0; i < links.size; i++ )
+      {
+        int f = nodeOfId( links.from.data[i] ), t = nodeOfId( links.to.data[i] );
 
-        for ( Node<OWLClass> subnode : subClasses )
+        if ( f != -1 && t != -1 && f != t )
         {
-          OWLClass sub = subnode.getEntities().iterator().next();
+          ends.add( f );
+          ends.add( t );
+          kinds.add( 2 * ( links.kind.data[i] + offset ) );
+        }
+      }
 
-          if ( sub.isOWLNothing() )
-            continue;
+      /*
+       * Each link goes in both nodes' lists, forward from the first and backward from the second
+       */
+      start = new int[n+1];
 
-          writer.println( "<" + cString + "> <http://open-physiology.org/#super-or-equal> <" + sub.toStringID() + "> ." );
-        }
+      for ( int i = 0; i < kinds.size; i++ )
+      {
+        int f = ends.data[2*i], t = ends.data[2*i+1];
 
-        Set<OWLClassExpression> supers = c.getSuperClasses(ont);
-        for ( OWLClassExpression exp : supers )
-        {
-          if ( !(exp instanceof OWLObjectSomeValuesFrom) )
-            continue;
+        if ( f == top || t == top || f == tx.bottom || t == tx.bottom )
+          continue;
 
-          OWLRestriction restrict = (OWLRestriction) exp;
+        start[f+1]++;
+        start[t+1]++;
+      }
 
-          Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
-          boolean fBad = false;
+      for ( int i = 0; i < n; i++ )
+        start[i+1] += start[i];
 
-          for ( OWLObjectProperty objPropery : objProperties )
-          {
-            if ( !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#regional_part_of" )
-            &&   !objPropery.toStringID().equals( "http://purl.org/obo/owlapi/fma#constitutional_part_of" ) )
-            {
-              fBad = true;
-              break;
-            }
-          }
-          if ( fBad )
-            continue;
+      adj = new int[start[n]];
+      kind = new int[start[n]];
+      int[] fill = Arrays.copyOf( start, n );
 
-          Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
+      for ( int i = 0; i < kinds.size; i++ )
+      {
+        int f = ends.data[2*i], t = ends.data[2*i+1];
 
-          for ( OWLClass classInSignature : classesInSignature )
-          {
-            writer.println( "<" + classInSignature.toStringID() + "> <http://open-physiology.org/#super-or-equal> <" + cString + "> ." );
-            break;
-          }
-        }
+        if ( f == top || t == top || f == tx.bottom || t == tx.bottom )
+          continue;
+
+        adj[fill[f]] = t;
+        kind[fill[f]++] = kinds.data[i];
+        adj[fill[t]] = f;
+        kind[fill[t]++] = kinds.data[i] + 1;
       }
     }
 
-    writer.close();
+    int nodeOfId( int id )
+    {
+      return ( id < tx.nodeOfEntity.length ) ? tx.nodeOfEntity[id] : -1;
+    }
 
-    return "{ \"result\": \"Triples saved to file triples.nt in owlkb directory\" }";
-  }
+    public int edgeCount()
+    {
+      return adj.length / 2;
+    }
 
-  public String computeSubhierarchyResponse( OWLClassExpression exp, OWLReasoner r )
-  {
-    StringBuilder sb = new StringBuilder();
+    public String edgeName( int k )
+    {
+      return names[k / 2];
+    }
 
-    sb.append( "{\n" );
-    appendSubhierarchy( sb, exp, r, 1 );
-    sb.append( "\n}" );
+    public boolean isReversed( int k )
+    {
+      return k % 2 == 1;
+    }
 
-    return sb.toString();
-  }
+    /*
+     * Breadth-first from both ends at once, a whole layer at a time from whichever side has
+     * the smaller frontier, until the two searches meet.  Returns the path as alternating
+     * nodes and edge kinds (node, kind, node, ..., node), where each kind is the edge from the
+     * node before it to the node after; or null if there's no path.
+     */
+    public int[] shortestPath( int a, int b )
+    {
+      if ( a == b )
+        return new int[] { a };
 
-  public void appendSubhierarchy( StringBuilder sb, OWLClassExpression exp, OWLReasoner r, int indent )
-  {
-    appendSpaces( sb, indent );
-    sb.append( "\"subterms\":\n" );
-    appendSpaces( sb, indent );
-    sb.append( "[\n" );
+      PathScratch x = scratch();
 
-    Set<Node<OWLClass>> nodes = r.getSubClasses( exp, true ).getNodes();
-    boolean isFirst = true;
+      try
+      {
+        int stamp = x.nextStamp();
+        int[][] queue = { x.queueA, x.queueB };
+        int[] head = { 0, 0 }, tail = { 1, 1 };
 
-    for ( Node<OWLClass> node : nodes )
-    {
-      OWLClass c = node.getRepresentativeElement();
+        queue[0][0] = a;
+        queue[1][0] = b;
+        x.side[a] = stamp;
+        x.side[b] = -stamp;
+        x.dist[a] = x.dist[b] = 0;
+        x.pred[a] = x.pred[b] = -1;
 
-      if ( c.isOWLNothing() )
-        continue;
+        int best = Integer.MAX_VALUE, meetFrom = -1, meetTo = -1, meetEdge = -1;
 
-      if ( isFirst )
-        isFirst = false;
-      else
-        sb.append( ",\n" );
+        while ( head[0] < tail[0] && head[1] < tail[1] )
+        {
+          int s = ( tail[0] - head[0] <= tail[1] - head[1] ) ? 0 : 1;
+          int mine = ( s == 0 ) ? stamp : -stamp;
+          int layerEnd = tail[s];
 
-      appendSpaces( sb, indent + 1 );
-      sb.append( "{\n" );
-      appendSpaces( sb, indent + 2 );
-      sb.append( "\"term\": \"" + shortUrl(c.getIRI().toString()) + "\",\n" );
+          while ( head[s] < layerEnd )
+          {
+            int v = queue[s][head[s]++];
 
-      String label = labelByClass( c );
-      if ( label != null )
-      {
-        appendSpaces( sb, indent + 2 );
-        sb.append( "\"label\": \"" + escapeJSON(label) + "\",\n" );
-      }
+            for ( int j = start[v]; j < start[v+1]; j++ )
+            {
+              int w = adj[j];
 
-      appendSubhierarchy( sb, c, r, indent+2 );
+              if ( x.side[w] == mine )
+                continue;
 
-      sb.append( "\n" );
-      appendSpaces( sb, indent + 1 );
-      sb.append( "}" );
-    }
+              if ( x.side[w] == -mine )
+              {
+                if ( x.dist[v] + 1 + x.dist[w] < best )
+                {
+                  best = x.dist[v] + 1 + x.dist[w];
+                  meetFrom = ( s == 0 ) ? v : w;
+                  meetTo = ( s == 0 ) ? w : v;
+                  meetEdge = ( s == 0 ) ? kind[j] : kind[j] ^ 1;
+                }
+                continue;
+              }
 
-    sb.append( "\n" );
-    appendSpaces( sb, indent );
-    sb.append( "]" );
-  }
+              x.side[w] = mine;
+              x.dist[w] = x.dist[v] + 1;
+              x.pred[w] = v;
+              x.predKind[w] = kind[j];
+              queue[s][tail[s]++] = w;
+            }
+          }
 
-  public void appendSpaces( StringBuilder sb, int n )
-  {
-    sb.append( String.format( "%"+n+"s", "" ) );
-  }
+          if ( best != Integer.MAX_VALUE )
+            break;
+        }
 
-  public String computeApinatomyResponse( OWLOntology o, IRI iri, OWLOntologyManager m, OWLReasoner reasoner, String req )
-  {
-    String response = "[\n";
-    boolean isFirstResult = true;
+        if ( best == Integer.MAX_VALUE )
+          return null;
 
-    req = req.replace("fma:", "FMA_");
+        /*
+         * Walk back to a from the meeting edge, then on to b
+         */
+        int[] path = new int[2 * best + 1];
+        int i = 2 * x.dist[meetFrom];
 
-    List<String> shortforms = java.util.Arrays.asList(req.split(","));
+        for ( int v = meetFrom; v != -1; v = x.pred[v] )
+        {
+          path[i] = v;
+          if ( i > 0 )
+            path[i-1] = x.predKind[v];
+          i -= 2;
+        }
 
-    /*
-     * Max size chosen based on FMA's most prolific class, FMA_21792 ("Fascia of muscle"), which has 222 subs
-     */
-    if ( shortforms.size() > 250 )
-      return "[]";
+        i = 2 * x.dist[meetFrom] + 1;
+        path[i++] = meetEdge;
 
-    if ( req.substring(0,6).equals( "24tile" ) )
-    {
-      String top24 = readFile("24tiles.dat");
+        for ( int v = meetTo; v != -1; v = x.pred[v] )
+        {
+          path[i++] = v;
+          if ( x.pred[v] != -1 )
+            path[i++] = x.predKind[v] ^ 1;
+        }
 
-      return (top24 != null) ? top24 : "[]";
+        return path;
+      }
+      finally
+      {
+        scratch.offer( x );
+      }
     }
 
-    if ( req.equals("pkpd_base") )
+    /*
+     * A tree connecting some nodes: its nodes, its edges as (node, kind, node) triples, the
+     * nodes it couldn't reach, and whether it ran out of budget
+     */
+    static class Tree
     {
-      String topTiles = readFile("pkpdroot.dat");
-
-      return (topTiles != null) ? topTiles : "[]";
+      IntList nodes = new IntList(), edges = new IntList(), unconnected = new IntList();
+      boolean truncated;
     }
 
-    for ( String shortform : shortforms )
+    /*
+     * Connect the given nodes with a tree (the shortest-path heuristic for Steiner trees):
+     * starting from the first node, search breadth-first from the whole tree at once for the
+     * nearest node not yet in it, and add the path there.  The searches together visit at most
+     * budget nodes.
+     */
+    public Tree connect( int[] terminals, int budget )
     {
-      OWLEntity e = shortformProvider.getEntity(shortform);
+      Tree tree = new Tree();
+      PathScratch x = scratch();
 
-      if ( e == null || (!e.isOWLClass() && !e.isOWLNamedIndividual() ) )
-        continue;
+      try
+      {
+        int treeStamp = x.nextTreeStamp();
+        int remaining = 0;
 
-      if ( isFirstResult )
-        isFirstResult = false;
-      else
-        response += ",\n";
+        for ( int t : terminals )
+        {
+          if ( x.goal[t] != treeStamp )
+          {
+            x.goal[t] = treeStamp;
+            remaining++;
+          }
+        }
 
-      response += "  {\n    \"_id\": \"" + escapeJSON(shortform) + "\",\n";
+        if ( terminals.length == 0 )
+          return tree;
 
-      String theLabel = getOneRdfsLabel( e, o );
+        x.inTree[terminals[0]] = treeStamp;
+        x.goal[terminals[0]] = 0;
+        tree.nodes.add( terminals[0] );
+        remaining--;
 
-      if ( theLabel == null )
-        theLabel = shortform;
+        while ( remaining > 0 && budget > 0 )
+        {
+          int stamp = x.nextStamp();
+          int head = 0, tail = 0, found = -1;
 
-      response += "    \"name\": \"" + escapeJSON(theLabel) + "\",\n    \"sub\":\n    [\n";
+          for ( int i = 0; i < tree.nodes.size; i++ )
+          {
+            int v = tree.nodes.data[i];
 
-      if ( e.isOWLClass() )
-      {
-        List<ApinatomySub> subs = getApinatomySubs(e, reasoner, o);
-        boolean isFirstSub = true;
+            x.side[v] = stamp;
+            x.pred[v] = -1;
+            x.queueA[tail++] = v;
+          }
 
-        for ( ApinatomySub sub : subs )
-        {
-          if ( isFirstSub )
-            isFirstSub = false;
-          else
-            response += ",\n";
+          while ( head < tail && found == -1 && budget > 0 )
+          {
+            int v = x.queueA[head++];
+            budget--;
 
-          response += "      {\n        \"type\": \"" + escapeJSON(sub.type) + "\",\n";
-          response += "        \"entity\":\n        {\n          \"_id\": \"" + escapeJSON(sub.id) + "\"\n        }\n      }";
-        }
-      }
+            for ( int j = start[v]; j < start[v+1]; j++ )
+            {
+              int w = adj[j];
 
-      response += "\n    ]\n  }";
-    }
+              if ( x.side[w] == stamp )
+                continue;
 
-    response = response.replace( "FMA_", "fma:" );
+              x.side[w] = stamp;
+              x.pred[w] = v;
+              x.predKind[w] = kind[j];
 
-    response += "\n]";
+              if ( x.goal[w] == treeStamp )
+              {
+                found = w;
+                break;
+              }
 
-    return response;
-  }
+              x.queueA[tail++] = w;
+            }
+          }
 
-  public String queryURL(String urlString)
-  {
-    StringBuilder buf = null;
-    java.io.Reader r = null;
+          if ( found == -1 )
+          {
+            tree.truncated = ( budget == 0 );
+            break;
+          }
 
-    try
-    {
-      java.net.URL url = new java.net.URL(urlString);
-      java.net.URLConnection con = url.openConnection();
+          /*
+           * Add the path back to the tree, and any other wanted nodes it passes through
+           */
+          for ( int v = found; x.inTree[v] != treeStamp; v = x.pred[v] )
+          {
+            x.inTree[v] = treeStamp;
+            tree.nodes.add( v );
+            tree.edges.add( x.pred[v] );
+            tree.edges.add( x.predKind[v] );
+            tree.edges.add( v );
 
-      /*
-       * To do: Make these values configurable
-       */
-      con.setConnectTimeout( 1000 );
-      con.setReadTimeout( 1000 );
+            if ( x.goal[v] == treeStamp )
+            {
+              x.goal[v] = 0;
+              remaining--;
+            }
+          }
+        }
 
-      r = new java.io.InputStreamReader(con.getInputStream(), "UTF-8");
-      buf = new StringBuilder();
+        if ( remaining > 0 && budget == 0 )
+          tree.truncated = true;
 
-      while (true)
+        for ( int t : terminals )
+        {
+          if ( x.goal[t] == treeStamp )
+          {
+            x.goal[t] = 0;
+            tree.unconnected.add( t );
+          }
+        }
+
+        return tree;
+      }
+      finally
       {
-        int ch = r.read();
-        if (ch < 0)
-          break;
-        buf.append((char) ch);
+        scratch.offer( x );
       }
-      return buf.toString();
     }
-    catch(Exception e)
+
+    /*
+     * Search state from this graph's pool if it has any; searches offer it back when done (it is
+     * dropped if the pool is full).  Marks are stamped, so it can be reused even after a failed
+     * search.
+     */
+    PathScratch scratch()
     {
-      return null;
-    }
-  }
+      PathScratch x = scratch.poll();
 
-  public String queryFeather( String command, String x )
-  {
-    return queryURL("http://open-physiology.org:5053/"+command+"/"+x);
+      return x != null ? x : new PathScratch( tx.nodeCount() );
+    }
   }
 
-  public List<ApinatomySub> getApinatomySubs( OWLEntity e, OWLReasoner r, OWLOntology o )
+  /*
+   * State for PathGraph searches: side[v] is +stamp if the search from the start
+   * has reached v, or -stamp if the search from the end has.  While connect() builds a tree,
+   * inTree and goal mark its nodes and the nodes still to be connected with another stamp.
+   */
+  static class PathScratch
   {
-    List<ApinatomySub> response = new ArrayList<ApinatomySub>();
-
-    if ( !( e instanceof OWLClass ) )
-      return response;
-
-    OWLClass c = e.asOWLClass();
+    int[] side, dist, pred, predKind, queueA, queueB;
+    int[] inTree, goal;
+    int stamp, treeStamp;
 
-    ArrayList<String> subclassList = getSubTerms(c, r, false, true, false);
-
-    for ( String subclass : subclassList )
+    public PathScratch( int nodes )
     {
-      String theID = shortUrl( subclass );
-
-      if ( !theID.equals( "Nothing" ) )
-        response.add( new ApinatomySub( theID, "subclass" ) );
+      side = new int[nodes];
+      dist = new int[nodes];
+      pred = new int[nodes];
+      predKind = new int[nodes];
+      queueA = new int[nodes];
+      queueB = new int[nodes];
+      inTree = new int[nodes];
+      goal = new int[nodes];
     }
 
-    for ( OWLOntology imp : importClosure )
+    public int nextTreeStamp()
     {
-      Set<OWLClassExpression> supers = c.getSuperClasses(imp);
-
-      for ( OWLClassExpression exp : supers )
+      if ( treeStamp == Integer.MAX_VALUE )
       {
-        if ( !( exp instanceof OWLObjectSomeValuesFrom ) )
-          continue;
+        Arrays.fill( inTree, 0 );
+        Arrays.fill( goal, 0 );
+        treeStamp = 0;
+      }
 
-        String type = null;
-        OWLRestriction restrict = (OWLRestriction) exp;
-        Set<OWLObjectProperty> objProperties = restrict.getObjectPropertiesInSignature();
+      return ++treeStamp;
+    }
 
-        for ( OWLObjectProperty objPropery : objProperties )
-        {
-          String objPropertyShort = shortUrl( objPropery.toStringID() );
+    public int nextStamp()
+    {
+      if ( stamp == Integer.MAX_VALUE )
+      {
+        Arrays.fill( side, 0 );
+        stamp = 0;
+      }
 
-          if ( objPropertyShort.equals( "regional_part" ) )
-            type = "regional part";
-          else
-          if ( objPropertyShort.equals( "constitutional_part" ) )
-            type = "constitutional part";
+      return ++stamp;
+    }
+  }
 
-          break;
-        }
+  static class TaxonomyScratch
+  {
+    int[] mark, queue;
+    double[] score;
+    int stamp;
 
-        if ( type == null )
-          continue;
+    public TaxonomyScratch( int nodes )
+    {
+      mark = new int[nodes];
+      queue = new int[nodes];
+      score = new double[nodes];
+    }
 
-        Set<OWLClass> classesInSignature = restrict.getClassesInSignature();
-        for ( OWLClass classInSignature : classesInSignature )
-        {
-          response.add( new ApinatomySub( shortUrl(classInSignature.toStringID()), type ) );
-          break;
-        }
+    public int nextStamp()
+    {
+      if ( stamp == Integer.MAX_VALUE )
+      {
+        Arrays.fill( mark, 0 );
+        stamp = 0;
       }
 
-      Set<OWLIndividual> inds = c.getIndividuals(imp);
+      return ++stamp;
+    }
+  }
 
-      for ( OWLIndividual ind : inds )
-      {
-        if ( !(ind instanceof OWLNamedIndividual) )
-          continue;
+  static class LabelMatch
+  {
+    IRI iri;
+    String label;
+    double score;
 
-        response.add( new ApinatomySub( shortUrl( ind.asOWLNamedIndividual().getIRI().toString() ), "subclass" ) );
-      }
+    public LabelMatch( IRI iri, String label, double score )
+    {
+      this.iri = iri;
+      this.label = label;
+      this.score = score;
     }
-
-    return response;
   }
 
-  class ApinatomySub
+  static class FuzzyEntry
   {
-    public String id;
-    public String type;
+    IRI iri;
+    String label;
+    int grams;       // Number of distinct trigrams in the normalized label
+    boolean live;    // False once the entity's labels have been replaced
 
-    public ApinatomySub(String id, String type)
+    public FuzzyEntry( IRI iri, String label, int grams )
     {
-      this.id = id;
-      this.type = type;
+      this.iri = iri;
+      this.label = label;
+      this.grams = grams;
+      this.live = true;
     }
   }
 
-  public String getOneRdfsLabel( OWLEntity e, OWLOntology o )
+  /*
+   * Growable array of ints, for postings lists
+   */
+  static class IntList
   {
-    Set<OWLAnnotation> annots = e.getAnnotations(o, rdfsLabel);
+    int[] data = new int[2];
+    int size;
 
-    if ( annots.isEmpty() )
+    public void add( int x )
     {
-      for ( OWLOntology imp : importClosure )
+      if ( size == data.length )
+        data = Arrays.copyOf( data, size * 2 );
+
+      data[size++] = x;
+    }
+
+    public boolean contains( int x )
+    {
+      for ( int i = 0; i < size; i++ )
       {
-        annots = e.getAnnotations( imp, rdfsLabel );
-        if ( !annots.isEmpty() )
-          break;
+        if ( data[i] == x )
+          return true;
       }
-    }
 
-    if ( annots.isEmpty() )
-      return null;
+      return false;
+    }
 
-    for ( OWLAnnotation a : annots )
+    public static <K> void addTo( Map<K,IntList> map, K key, int x )
     {
-      if ( a.getValue() instanceof OWLLiteral )
-        return ((OWLLiteral)a.getValue()).getLiteral();
-    }
+      IntList list = map.get( key );
 
-    return null;
+      if ( list == null )
+      {
+        list = new IntList();
+        map.put( key, list );
+      }
+
+      list.add( x );
+    }
   }
 
   public static String escapeJSON(String s)
@@ -1704,6 +7748,256 @@ public class Owlkb
     return result;
   }
 
+  static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+  /*
+   * Read the body of a POST request as a UTF-8 string.  Throws IOException if the body is
+   * longer than MAX_REQUEST_BYTES.
+   */
+  public static String readRequestBody( HttpExchange t ) throws java.io.IOException
+  {
+    java.io.InputStream is = t.getRequestBody();
+    java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+
+    while ( (n = is.read(buf)) != -1 )
+    {
+      if ( body.size() + n > MAX_REQUEST_BYTES )
+      {
+        is.close();
+        throw new java.io.IOException( "Request body is longer than " + MAX_REQUEST_BYTES + " bytes" );
+      }
+
+      body.write( buf, 0, n );
+    }
+
+    is.close();
+
+    return new String( body.toByteArray(), java.nio.charset.StandardCharsets.UTF_8 );
+  }
+
+  /*
+   * Minimal JSON parser, for request bodies.  Objects become Maps, arrays become Lists,
+   * numbers become Doubles.  Throws IllegalArgumentException on malformed JSON, or JSON
+   * nested more than MAX_DEPTH deep (which would otherwise overflow the stack).
+   */
+  static class JsonParser
+  {
+    static final int MAX_DEPTH = 64;
+
+    String s;
+    int pos, depth;
+
+    JsonParser( String s )
+    {
+      this.s = s;
+    }
+
+    public static Object parse( String json )
+    {
+      JsonParser p = new JsonParser( json );
+      Object value = p.parseValue();
+
+      p.skipWhitespace();
+      if ( p.pos != json.length() )
+        throw p.error( "Unexpected trailing characters" );
+
+      return value;
+    }
+
+    Object parseValue()
+    {
+      skipWhitespace();
+
+      if ( pos >= s.length() )
+        throw error( "Unexpected end of JSON" );
+
+      char c = s.charAt(pos);
+
+      if ( ( c == '{' || c == '[' ) && depth >= MAX_DEPTH )
+        throw error( "JSON nested more than " + MAX_DEPTH + " deep" );
+
+      if ( c == '{' )
+      {
+        depth++;
+        Map<String,Object> obj = parseObject();
+        depth--;
+        return obj;
+      }
+      if ( c == '[' )
+      {
+        depth++;
+        List<Object> arr = parseArray();
+        depth--;
+        return arr;
+      }
+      if ( c == '"' )
+        return parseString();
+      if ( s.startsWith( "true", pos ) )
+      {
+        pos += 4;
+        return Boolean.TRUE;
+      }
+      if ( s.startsWith( "false", pos ) )
+      {
+        pos += 5;
+        return Boolean.FALSE;
+      }
+      if ( s.startsWith( "null", pos ) )
+      {
+        pos += 4;
+        return null;
+      }
+
+      int start = pos;
+      while ( pos < s.length() && "+-0123456789.eE".indexOf( s.charAt(pos) ) != -1 )
+        pos++;
+
+      try
+      {
+        return Double.valueOf( s.substring( start, pos ) );
+      }
+      catch( NumberFormatException e )
+      {
+        throw error( "Unexpected character" );
+      }
+    }
+
+    Map<String,Object> parseObject()
+    {
+      Map<String,Object> obj = new LinkedHashMap<String,Object>();
+      pos++;
+      skipWhitespace();
+
+      if ( pos < s.length() && s.charAt(pos) == '}' )
+      {
+        pos++;
+        return obj;
+      }
+
+      while ( true )
+      {
+        skipWhitespace();
+        if ( pos >= s.length() || s.charAt(pos) != '"' )
+          throw error( "Expected a string key" );
+
+        String key = parseString();
+        expect( ':' );
+        obj.put( key, parseValue() );
+
+        skipWhitespace();
+        if ( pos < s.length() && s.charAt(pos) == ',' )
+        {
+          pos++;
+          continue;
+        }
+
+        expect( '}' );
+        return obj;
+      }
+    }
+
+    List<Object> parseArray()
+    {
+      List<Object> arr = new ArrayList<Object>();
+      pos++;
+      skipWhitespace();
+
+      if ( pos < s.length() && s.charAt(pos) == ']' )
+      {
+        pos++;
+        return arr;
+      }
+
+      while ( true )
+      {
+        arr.add( parseValue() );
+
+        skipWhitespace();
+        if ( pos < s.length() && s.charAt(pos) == ',' )
+        {
+          pos++;
+          continue;
+        }
+
+        expect( ']' );
+        return arr;
+      }
+    }
+
+    String parseString()
+    {
+      StringBuilder sb = new StringBuilder();
+      pos++;
+
+      while ( pos < s.length() )
+      {
+        char c = s.charAt(pos++);
+
+        if ( c == '"' )
+          return sb.toString();
+
+        if ( c != '\\' )
+        {
+          sb.append( c );
+          continue;
+        }
+
+        if ( pos >= s.length() )
+          break;
+
+        c = s.charAt(pos++);
+
+        switch( c )
+        {
+          case 'n': sb.append( '\n' ); break;
+          case 't': sb.append( '\t' ); break;
+          case 'r': sb.append( '\r' ); break;
+          case 'b': sb.append( '\b' ); break;
+          case 'f': sb.append( '\f' ); break;
+          case 'u':
+            if ( pos + 4 > s.length() )
+              throw error( "Bad unicode escape" );
+            try
+            {
+              sb.append( (char) Integer.parseInt( s.substring( pos, pos+4 ), 16 ) );
+            }
+            catch( NumberFormatException e )
+            {
+              throw error( "Bad unicode escape" );
+            }
+            pos += 4;
+            break;
+          default: sb.append( c ); break;
+        }
+      }
+
+      throw error( "Unterminated string" );
+    }
+
+    void expect( char c )
+    {
+      skipWhitespace();
+
+      if ( pos >= s.length() || s.charAt(pos) != c )
+        throw error( "Expected '" + c + "'" );
+
+      pos++;
+    }
+
+    void skipWhitespace()
+    {
+      while ( pos < s.length() && Character.isWhitespace( s.charAt(pos) ) )
+        pos++;
+    }
+
+    IllegalArgumentException error( String msg )
+    {
+      return new IllegalArgumentException( msg + " at position " + pos );
+    }
+  }
+
   public String naiveJsonParse(String json, String key)
   {
     return naiveJsonParse( json, key, "\"", "\"" );
@@ -1734,19 +8028,27 @@ public class Owlkb
     return json.substring(pos,endPos);
   }
 
-  private void classToTermlist( Node<OWLClass> node, List<String> L, boolean longIRI, boolean verbose )
+  private void classToTermlist( Node<OWLClass> node, ArrayList<String> L, boolean longIRI, boolean verbose )
   {
     objToTermlist( node.getRepresentativeElement(), L, longIRI, verbose );
   }
 
-  private void individualToTermlist( Node<OWLNamedIndividual> node, List<String> L, boolean longIRI, boolean verbose )
+  private void individualToTermlist( Node<OWLNamedIndividual> node, ArrayList<String> L, boolean longIRI, boolean verbose )
   {
     objToTermlist( node.getRepresentativeElement(), L, longIRI, verbose );
   }
 
-  private void objToTermlist( OWLEntity c, List<String> L, boolean longIRI, boolean verbose )
+  private void objToTermlist( OWLEntity c, ArrayList<String> L, boolean longIRI, boolean verbose )
+  {
+    L.add( termOf( c, longIRI, verbose ) );
+  }
+
+  /*
+   * The entity as a result row: its IRI, or for verbose responses a JSON object with its label
+   */
+  private String termOf( OWLEntity c, boolean longIRI, boolean verbose )
   {
-    String theIRI = longIRI ? c.getIRI().toString() : c.toStringID();
+    String theIRI = shortformProvider.iriString( c );
 
     if ( verbose )
     {
@@ -1763,12 +8065,17 @@ public class Owlkb
       else
         sb.append( "\"" + escapeJSON(label) + "\"" );
 
+      int count = snapshotDescendantCount( c );
+
+      if ( count != -1 )
+        sb.append( ",\n \"descendantCount\": " ).append( count );
+
       sb.append( "\n}" );
 
-      L.add(sb.toString());
+      return sb.toString();
     }
     else
-      L.add(theIRI);
+      return theIRI;
   }
 
   String computeDemoResponse( OWLClassExpression exp, OWLReasoner r, OWLOntologyManager m, OWLOntology o, IRI iri, long startTime, boolean fJson, boolean verbose )
@@ -1809,14 +8116,19 @@ public class Owlkb
 
     ArrayList<String> subs;
 
+    kbLock.readLock().lock();
     try
     {
-      subs = getSubTerms(exp,r,false,false,verbose);
+      subs = getSubTerms(exp,r,false,false,verbose,false);
     }
     catch( Exception e )
     {
       return "There was an error getting the results";
     }
+    finally
+    {
+      kbLock.readLock().unlock();
+    }
 
     if ( fJson )
     {